@@ -0,0 +1,107 @@
+package nl.jochemkuijpers.network.benchmark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import nl.jochemkuijpers.network.Connection;
+import nl.jochemkuijpers.network.HttpConnection;
+import nl.jochemkuijpers.network.HttpsConnection;
+import nl.jochemkuijpers.network.InputFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures complete requests over plaintext HTTP and HTTPS against a
+ * {@link LoopbackServer}. Each benchmark reports throughput and the latency
+ * distribution of a request; run with -prof gc to also report the allocation
+ * per request.
+ * 
+ * Sockets are kept alive between requests, so the TLS handshake is not part
+ * of the measured requests.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionBenchmark {
+	private final static int FORM_FIELDS = 8;
+	private final static int FILE_SIZE = 65536;
+
+	@Param({ "http", "https" })
+	public String scheme;
+
+	private LoopbackServer server;
+	private Connection connection;
+	private Map<String, String> form;
+	private Map<String, InputFile> files;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new LoopbackServer();
+		if (scheme.equals("https")) {
+			connection = new HttpsConnection("127.0.0.1",
+					server.getHttpsPort(), server.getClientContext());
+		} else {
+			connection = new HttpConnection("127.0.0.1", server.getHttpPort());
+		}
+
+		form = new HashMap<String, String>();
+		for (int i = 0; i < FORM_FIELDS; i++) {
+			form.put("field" + i, "value " + i + " & caf\u00e9 = 100%");
+		}
+		files = new HashMap<String, InputFile>();
+		files.put("file", new InputFile("data.bin", "application/octet-stream",
+				new byte[FILE_SIZE]));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		connection.closeIdleConnections();
+		server.close();
+	}
+
+	@Benchmark
+	public byte[] getSmall() throws IOException {
+		return connection.get("small");
+	}
+
+	@Benchmark
+	public byte[] getLarge() throws IOException {
+		return connection.get("large");
+	}
+
+	@Benchmark
+	public int getManyHeaders() throws IOException {
+		return connection.getResponse("headers").getHeaders().size();
+	}
+
+	@Benchmark
+	public byte[] postForm() throws IOException {
+		return connection.post("echo", form);
+	}
+
+	@Benchmark
+	public byte[] postMultipart() throws IOException {
+		return connection.post("echo", form, files);
+	}
+}
@@ -0,0 +1,247 @@
+package nl.jochemkuijpers.network.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * An HTTP and an HTTPS server on the loopback interface, which the benchmarks
+ * send their requests to so they need no external service. The HTTPS server
+ * uses a self-signed certificate for 127.0.0.1 and localhost, created with the
+ * keytool of the running JDK when the server starts.
+ * {@link #getClientContext()} returns an SSLContext that trusts it.
+ * 
+ * Both servers answer the same paths:
+ * <ul>
+ * <li>small: a body of {@value #SMALL_SIZE} bytes</li>
+ * <li>large: a body of {@value #LARGE_SIZE} bytes</li>
+ * <li>headers: a small body with {@value #HEADER_FIELDS} extra header fields</li>
+ * <li>echo: reads the request body and answers with its length</li>
+ * </ul>
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class LoopbackServer implements Closeable {
+	public final static int SMALL_SIZE = 128;
+	public final static int LARGE_SIZE = 1 << 20;
+	public final static int HEADER_FIELDS = 64;
+
+	private final static String PASSWORD = "loopback";
+
+	static {
+		// the server writes headers and body separately, which would otherwise
+		// wait for the delayed ACK of the client on every response
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final ExecutorService executor;
+	private final HttpServer http;
+	private final HttpsServer https;
+	private final SSLContext clientContext;
+
+	/**
+	 * Starts both servers on free ports.
+	 * 
+	 * @throws IOException
+	 *             if a server could not be started or the certificate could
+	 *             not be created
+	 * @throws GeneralSecurityException
+	 *             if the certificate could not be loaded
+	 */
+	public LoopbackServer() throws IOException, GeneralSecurityException {
+		KeyStore keyStore = createKeyStore();
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory
+				.getDefaultAlgorithm());
+		keys.init(keyStore, PASSWORD.toCharArray());
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(keys.getKeyManagers(), null, null);
+
+		TrustManagerFactory trust = TrustManagerFactory
+				.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(keyStore);
+		this.clientContext = SSLContext.getInstance("TLS");
+		this.clientContext.init(null, trust.getTrustManagers(), null);
+
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "loopback-server");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		InetSocketAddress address = new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0);
+		this.http = HttpServer.create(address, 1024);
+		this.https = HttpsServer.create(address, 1024);
+		this.https.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+
+		Handler handler = new Handler();
+		http.createContext("/", handler);
+		https.createContext("/", handler);
+		http.setExecutor(executor);
+		https.setExecutor(executor);
+		http.start();
+		https.start();
+	}
+
+	/**
+	 * @return the port of the HTTP server
+	 */
+	public int getHttpPort() {
+		return http.getAddress().getPort();
+	}
+
+	/**
+	 * @return the port of the HTTPS server
+	 */
+	public int getHttpsPort() {
+		return https.getAddress().getPort();
+	}
+
+	/**
+	 * @return an SSLContext that trusts the certificate of the HTTPS server
+	 */
+	public SSLContext getClientContext() {
+		return clientContext;
+	}
+
+	/**
+	 * Stops both servers.
+	 */
+	@Override
+	public void close() {
+		http.stop(0);
+		https.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Creates a key store with a new self-signed certificate, using the
+	 * keytool of the running JDK.
+	 * 
+	 * @return the key store
+	 * @throws IOException
+	 *             if keytool failed
+	 * @throws GeneralSecurityException
+	 *             if the key store could not be loaded
+	 */
+	private static KeyStore createKeyStore() throws IOException,
+			GeneralSecurityException {
+		Path file = Files.createTempFile("loopback-", ".p12");
+		Files.delete(file);
+		try {
+			String keytool = Paths.get(System.getProperty("java.home"), "bin",
+					"keytool").toString();
+			Process process = new ProcessBuilder(keytool, "-genkeypair",
+					"-alias", "loopback", "-keyalg", "EC", "-groupname",
+					"secp256r1", "-dname", "CN=localhost", "-ext",
+					"SAN=ip:127.0.0.1,dns:localhost", "-validity", "2",
+					"-storetype", "PKCS12", "-keystore", file.toString(),
+					"-storepass", PASSWORD, "-keypass", PASSWORD)
+					.redirectErrorStream(true).start();
+			byte[] output = process.getInputStream().readAllBytes();
+			if (process.waitFor() != 0) {
+				throw new IOException("keytool failed: "
+						+ new String(output, StandardCharsets.UTF_8));
+			}
+
+			KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			try (InputStream in = Files.newInputStream(file)) {
+				keyStore.load(in, PASSWORD.toCharArray());
+			}
+			return keyStore;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while running keytool");
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Answers the requests of both servers.
+	 */
+	private static class Handler implements HttpHandler {
+		private final byte[] small;
+		private final byte[] large;
+
+		Handler() {
+			this.small = new byte[SMALL_SIZE];
+			this.large = new byte[LARGE_SIZE];
+			Arrays.fill(small, (byte) 's');
+			Arrays.fill(large, (byte) 'l');
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String path = exchange.getRequestURI().getPath();
+				if (path.equals("/small")) {
+					send(exchange, small);
+				} else if (path.equals("/large")) {
+					send(exchange, large);
+				} else if (path.equals("/headers")) {
+					Headers headers = exchange.getResponseHeaders();
+					for (int i = 0; i < HEADER_FIELDS; i++) {
+						headers.add("X-Field-" + i, "value of field " + i);
+					}
+					send(exchange, small);
+				} else if (path.equals("/echo")) {
+					long length = drain(exchange.getRequestBody());
+					send(exchange, Long.toString(length).getBytes(
+							StandardCharsets.US_ASCII));
+				} else {
+					exchange.sendResponseHeaders(404, -1);
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private static void send(HttpExchange exchange, byte[] body)
+				throws IOException {
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+
+		private static long drain(InputStream in) throws IOException {
+			byte[] buffer = new byte[8192];
+			long length = 0;
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				length += n;
+			}
+			return length;
+		}
+	}
+}
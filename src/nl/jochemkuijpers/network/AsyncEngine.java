@@ -0,0 +1,103 @@
+package nl.jochemkuijpers.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Drives asynchronous requests on non-blocking sockets with a small number of
+ * event loop threads, so many concurrent requests do not each occupy a thread.
+ * 
+ * An engine is used through {@link Connection#getAsync(String)} and
+ * {@link Connection#postAsync(String, String)}. Connections use the default
+ * engine unless another one is set with
+ * {@link Connection#setAsyncEngine(AsyncEngine)}.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class AsyncEngine implements Closeable {
+	private static AsyncEngine defaultEngine;
+
+	private final EventLoop[] loops;
+	private final AtomicInteger next;
+
+	/**
+	 * Starts an engine.
+	 * 
+	 * @param threads
+	 *            the number of event loop threads
+	 * @throws IOException
+	 *             if a selector could not be opened
+	 */
+	public AsyncEngine(int threads) throws IOException {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+		this.loops = new EventLoop[threads];
+		this.next = new AtomicInteger();
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new EventLoop("network-async-" + i);
+		}
+	}
+
+	/**
+	 * @return the default engine, with one event loop thread per available
+	 *         processor. It is started when first used and never closed.
+	 * @throws IOException
+	 *             if the engine could not be started
+	 */
+	public static synchronized AsyncEngine getDefault() throws IOException {
+		if (defaultEngine == null) {
+			defaultEngine = new AsyncEngine(Runtime.getRuntime()
+					.availableProcessors());
+		}
+		return defaultEngine;
+	}
+
+	/**
+	 * Sends a request on a new socket and reads the response.
+	 * 
+	 * @param addresses
+	 *            the resolved addresses to connect to, in the order to try
+	 *            them
+	 * @param port
+	 *            destination port
+	 * @param ssl
+	 *            an SSLEngine in client mode, or null for plaintext
+	 * @param request
+	 *            the encoded request
+	 * @param decoder
+	 *            the decoder of the response
+	 * @param connectionTimeout
+	 *            the maximum time to connect in milliseconds
+	 * @param responseTimeout
+	 *            the maximum time without receiving data in milliseconds
+	 * @return a future that completes with the response
+	 */
+	CompletableFuture<Response> execute(InetAddress[] addresses, int port,
+			SSLEngine ssl, ByteBuffer request, ResponseDecoder decoder,
+			int connectionTimeout, int responseTimeout) {
+		AsyncExchange exchange = new AsyncExchange(addresses, port, ssl,
+				request, decoder, connectionTimeout, responseTimeout);
+		int i = (next.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+		loops[i].submit(exchange);
+		return exchange.getFuture();
+	}
+
+	/**
+	 * Stops the event loop threads. Requests in progress fail.
+	 */
+	@Override
+	public void close() {
+		for (EventLoop loop : loops) {
+			loop.shutdown();
+		}
+	}
+}
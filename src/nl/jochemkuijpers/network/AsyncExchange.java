@@ -0,0 +1,455 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+/**
+ * A single request and response on a non-blocking SocketChannel, driven by an
+ * {@link EventLoop}. If an SSLEngine is given, the exchange is secured with
+ * TLS.
+ * 
+ * The addresses of the host are tried one after another until one connects.
+ * Each attempt may use an even share of the connection timeout that is left,
+ * so an unreachable address does not use up the time of the others.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class AsyncExchange {
+	private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final InetAddress[] addresses;
+	private final int port;
+	private final SSLEngine ssl;
+	private final ByteBuffer request;
+	private final ResponseDecoder decoder;
+	private final CompletableFuture<Response> future;
+	private final long connectionTimeoutNanos;
+	private final long responseTimeoutNanos;
+
+	private Selector selector;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private ByteBuffer readBuffer;
+	private long deadline;
+
+	/** the next address to try, and when connecting has to give up */
+	private int attempt;
+	private long connectDeadline;
+	private IOException connectFailure;
+
+	/** TLS buffers: netIn and netOut are kept in write mode */
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+	private ByteBuffer appIn;
+
+	/**
+	 * @param addresses
+	 *            the resolved addresses to connect to, in the order to try
+	 *            them
+	 * @param port
+	 *            destination port
+	 * @param ssl
+	 *            an SSLEngine in client mode, or null for plaintext
+	 * @param request
+	 *            the encoded request
+	 * @param decoder
+	 *            the decoder of the response
+	 * @param connectionTimeout
+	 *            the maximum time to connect in milliseconds
+	 * @param responseTimeout
+	 *            the maximum time without receiving data in milliseconds
+	 */
+	AsyncExchange(InetAddress[] addresses, int port, SSLEngine ssl,
+			ByteBuffer request, ResponseDecoder decoder, int connectionTimeout,
+			int responseTimeout) {
+		this.addresses = addresses;
+		this.port = port;
+		this.ssl = ssl;
+		this.request = request;
+		this.decoder = decoder;
+		this.future = new CompletableFuture<Response>();
+		this.connectionTimeoutNanos = TimeUnit.MILLISECONDS
+				.toNanos(connectionTimeout);
+		this.responseTimeoutNanos = TimeUnit.MILLISECONDS
+				.toNanos(responseTimeout);
+	}
+
+	/**
+	 * @return the future that completes with the response
+	 */
+	CompletableFuture<Response> getFuture() {
+		return future;
+	}
+
+	/**
+	 * Opens the channel and starts connecting. Called on the event loop
+	 * thread.
+	 * 
+	 * @param selector
+	 *            the selector of the event loop
+	 * @param readBuffer
+	 *            a read buffer shared by the exchanges of the event loop
+	 */
+	void start(Selector selector, ByteBuffer readBuffer) {
+		if (future.isDone()) {
+			return; // cancelled before it started
+		}
+		this.selector = selector;
+		this.readBuffer = readBuffer;
+		this.connectDeadline = System.nanoTime() + connectionTimeoutNanos;
+		try {
+			connectNext();
+		} catch (IOException | RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Handles a readiness event. Called on the event loop thread.
+	 */
+	void handle() {
+		try {
+			if (future.isDone()) {
+				abandon();
+			} else if (key.isConnectable()) {
+				boolean connected;
+				try {
+					connected = channel.finishConnect();
+				} catch (IOException e) {
+					connectFailed(e);
+					return;
+				}
+				if (connected) {
+					connected();
+				}
+			} else if (ssl != null) {
+				processTls();
+			} else {
+				processPlain();
+			}
+		} catch (IOException | RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Fails the exchange if it timed out, or closes it if it was cancelled.
+	 * Called on the event loop thread.
+	 * 
+	 * @param now
+	 *            the current System.nanoTime()
+	 */
+	void checkTimeout(long now) {
+		if (future.isDone()) {
+			abandon();
+		} else if (now - deadline > 0) {
+			boolean connecting = (key.interestOps() & SelectionKey.OP_CONNECT) != 0;
+			if (!connecting) {
+				fail(new SocketTimeoutException("Read timed out"));
+				return;
+			}
+			try {
+				connectFailed(new SocketTimeoutException("Connect timed out"));
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Fails the exchange and closes the channel.
+	 * 
+	 * @param e
+	 *            the cause
+	 */
+	void fail(Throwable e) {
+		future.completeExceptionally(e);
+		abandon();
+	}
+
+	/**
+	 * Starts connecting to the next address. Addresses that fail right away
+	 * are skipped.
+	 * 
+	 * @throws IOException
+	 *             if no address is left to try
+	 */
+	private void connectNext() throws IOException {
+		while (true) {
+			InetSocketAddress address = new InetSocketAddress(
+					addresses[attempt++], port);
+			long now = System.nanoTime();
+			deadline = now + (connectDeadline - now)
+					/ (addresses.length - attempt + 1);
+
+			boolean connected;
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				connected = channel.connect(address);
+			} catch (IOException e) {
+				close();
+				addConnectFailure(e);
+				if (attempt == addresses.length) {
+					throw connectFailure;
+				}
+				continue;
+			}
+
+			if (connected) {
+				key = channel.register(selector, 0, this);
+				connected();
+			} else {
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Abandons the current connection attempt and tries the next address.
+	 * 
+	 * @param e
+	 *            the reason the attempt failed
+	 * @throws IOException
+	 *             if no address is left to try
+	 */
+	private void connectFailed(IOException e) throws IOException {
+		close();
+		key = null;
+		addConnectFailure(e);
+		if (attempt == addresses.length) {
+			throw connectFailure;
+		}
+		connectNext();
+	}
+
+	private void addConnectFailure(IOException e) {
+		if (connectFailure == null) {
+			connectFailure = e;
+		} else {
+			connectFailure.addSuppressed(e);
+		}
+	}
+
+	private void connected() throws IOException {
+		deadline = System.nanoTime() + responseTimeoutNanos;
+		if (ssl != null) {
+			netIn = ByteBuffer.allocate(ssl.getSession().getPacketBufferSize());
+			netOut = ByteBuffer.allocate(ssl.getSession().getPacketBufferSize());
+			appIn = ByteBuffer.allocate(ssl.getSession()
+					.getApplicationBufferSize());
+			ssl.beginHandshake();
+			processTls();
+		} else {
+			processPlain();
+		}
+	}
+
+	private void processPlain() throws IOException {
+		if (request.hasRemaining()) {
+			channel.write(request);
+			if (request.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+
+		while (true) {
+			readBuffer.clear();
+			int n = channel.read(readBuffer);
+			if (n < 0) {
+				endOfStream();
+				return;
+			}
+			if (n == 0) {
+				key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+			deadline = System.nanoTime() + responseTimeoutNanos;
+
+			readBuffer.flip();
+			decoder.feed(readBuffer);
+			if (decoder.isComplete()) {
+				complete();
+				return;
+			}
+		}
+	}
+
+	private void processTls() throws IOException {
+		while (!future.isDone()) {
+			if (!flush()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+
+			switch (ssl.getHandshakeStatus()) {
+			case NEED_TASK:
+				Runnable task;
+				while ((task = ssl.getDelegatedTask()) != null) {
+					task.run();
+				}
+				break;
+			case NEED_WRAP:
+				wrap(EMPTY);
+				break;
+			case NEED_UNWRAP:
+			case NEED_UNWRAP_AGAIN:
+				if (!unwrap()) {
+					return;
+				}
+				break;
+			default:
+				if (request.hasRemaining()) {
+					wrap(request);
+				} else if (!unwrap()) {
+					return;
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Writes pending TLS records to the channel.
+	 * 
+	 * @return true if all pending records were written
+	 */
+	private boolean flush() throws IOException {
+		if (netOut.position() == 0) {
+			return true;
+		}
+		netOut.flip();
+		channel.write(netOut);
+		netOut.compact();
+		return netOut.position() == 0;
+	}
+
+	private void wrap(ByteBuffer src) throws IOException {
+		SSLEngineResult result = ssl.wrap(src, netOut);
+		switch (result.getStatus()) {
+		case BUFFER_OVERFLOW:
+			netOut = enlarge(netOut, ssl.getSession().getPacketBufferSize());
+			break;
+		case CLOSED:
+			throw new IOException("TLS connection closed during the request");
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Decrypts received TLS records and feeds the data to the decoder.
+	 * 
+	 * @return true if progress was made, false if the exchange has to wait for
+	 *         data or has finished
+	 */
+	private boolean unwrap() throws IOException {
+		while (true) {
+			netIn.flip();
+			SSLEngineResult result = ssl.unwrap(netIn, appIn);
+			netIn.compact();
+
+			if (appIn.position() > 0) {
+				appIn.flip();
+				decoder.feed(appIn);
+				appIn.clear();
+				if (decoder.isComplete()) {
+					complete();
+					return false;
+				}
+			}
+
+			switch (result.getStatus()) {
+			case BUFFER_OVERFLOW:
+				appIn = enlarge(appIn, ssl.getSession()
+						.getApplicationBufferSize());
+				break;
+			case BUFFER_UNDERFLOW:
+				if (!netIn.hasRemaining()) {
+					netIn = enlarge(netIn, ssl.getSession()
+							.getPacketBufferSize());
+				}
+				int n = channel.read(netIn);
+				if (n < 0) {
+					endOfStream();
+					return false;
+				}
+				if (n == 0) {
+					key.interestOps(SelectionKey.OP_READ);
+					return false;
+				}
+				deadline = System.nanoTime() + responseTimeoutNanos;
+				break;
+			case CLOSED:
+				endOfStream();
+				return false;
+			default:
+				return true;
+			}
+		}
+	}
+
+	private void endOfStream() throws IOException {
+		decoder.endOfStream();
+		complete();
+	}
+
+	private void complete() {
+		Response response = decoder.getResponse();
+		if (!future.complete(response)) {
+			response.close(); // cancelled in the meantime
+		}
+		close();
+	}
+
+	/**
+	 * Closes the channel of an exchange that failed or was cancelled, and
+	 * deletes the temporary file of its body.
+	 */
+	private void abandon() {
+		close();
+		decoder.discard();
+	}
+
+	private void close() {
+		if (key != null) {
+			key.cancel();
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing to do, the channel is discarded anyway
+			}
+		}
+	}
+
+	/**
+	 * @return a buffer with at least the given capacity and the contents of
+	 *         buffer, which is in write mode
+	 */
+	private static ByteBuffer enlarge(ByteBuffer buffer, int capacity) {
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity,
+				buffer.capacity() * 2));
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+}
@@ -0,0 +1,61 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream over the body of a single HTTP response, which reads from the
+ * socket InputStream without reading past the end of the body.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+abstract class BodyInputStream extends InputStream {
+	protected final HttpInputStream in;
+
+	/**
+	 * @param in
+	 *            socket InputStream, positioned at the start of the body
+	 */
+	protected BodyInputStream(HttpInputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * @return true if the body was read completely and the socket InputStream
+	 *         is positioned at the start of the next response
+	 */
+	abstract boolean isComplete();
+
+	/**
+	 * @return the number of bytes left in the body, or -1 if it is not known in
+	 *         advance
+	 */
+	long getRemaining() {
+		return -1;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int len = read(b, 0, 1);
+		if (len <= 0) {
+			return -1;
+		}
+		return b[0] & 0xff;
+	}
+
+	/**
+	 * Reads the remainder of the body and discards it.
+	 * 
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	void drain() throws IOException {
+		byte[] buffer = new byte[1024];
+		while (read(buffer, 0, buffer.length) >= 0) {
+			// discard
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a response body exceeds the maximum body size of a connection.
+ * The body is abandoned as soon as its size is known to exceed the maximum,
+ * and the socket it was read from is closed.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ * @see Connection#setMaxBodySize(long)
+ */
+public class BodyTooLargeException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final long maxSize;
+
+	/**
+	 * @param message
+	 *            the reason the body was abandoned
+	 * @param maxSize
+	 *            the maximum body size in bytes
+	 */
+	public BodyTooLargeException(String message, long maxSize) {
+		super(message);
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the maximum body size in bytes that was exceeded
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+}
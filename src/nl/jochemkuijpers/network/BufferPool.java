@@ -0,0 +1,31 @@
+package nl.jochemkuijpers.network;
+
+/**
+ * Hands out a read buffer per thread, so reading a response does not allocate
+ * a new buffer every time. A buffer must not be used after the method that
+ * obtained it returns, as the next read on the same thread reuses it.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class BufferPool {
+	private final static ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>();
+
+	private BufferPool() {
+	}
+
+	/**
+	 * @param size
+	 *            the size of the buffer
+	 * @return the buffer of the current thread
+	 */
+	static byte[] get(int size) {
+		byte[] buffer = BUFFERS.get();
+		if (buffer == null || buffer.length != size) {
+			buffer = new byte[size];
+			BUFFERS.set(buffer);
+		}
+		return buffer;
+	}
+}
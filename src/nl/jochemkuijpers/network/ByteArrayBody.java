@@ -0,0 +1,63 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A request body that is held in memory.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class ByteArrayBody implements InlineBody {
+	private final String contentType;
+	private final byte[] content;
+
+	/**
+	 * @param contentType
+	 *            content type of the body
+	 * @param content
+	 *            the body
+	 */
+	ByteArrayBody(String contentType, byte[] content) {
+		this.contentType = contentType;
+		this.content = content;
+	}
+
+	/**
+	 * @return the body
+	 */
+	byte[] getContent() {
+		return content;
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public long getLength() {
+		return content.length;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public void writeTo(OutputStream out, WritableByteChannel channel)
+			throws IOException {
+		out.write(content);
+		out.flush();
+	}
+
+	@Override
+	public int writeTo(byte[] dest, int pos) {
+		System.arraycopy(content, 0, dest, pos, content.length);
+		return pos + content.length;
+	}
+}
@@ -0,0 +1,299 @@
+package nl.jochemkuijpers.network;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A response stored in an {@link HttpCache}, together with the time until
+ * which it may be served without revalidation.
+ * 
+ * Freshness is determined from the Cache-Control max-age directive or the
+ * Expires header. Responses with no-cache, or with only an ETag or
+ * Last-Modified validator, are stored but revalidated on every use.
+ * Responses with no-store are not stored, and neither are responses to
+ * requests with an Authorization header, unless the response is marked public
+ * or has an s-maxage or must-revalidate directive.
+ * 
+ * The entry remembers the values the request sent for the header fields named
+ * by the Vary header of the response, and is only used for requests that send
+ * the same values.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class CacheEntry {
+	private final Response response;
+	private final long expires;
+	private final Map<String, String> varying;
+
+	/**
+	 * @param response
+	 *            the stored response
+	 * @param expires
+	 *            the time in milliseconds since the epoch until which the
+	 *            response is fresh
+	 */
+	public CacheEntry(Response response, long expires) {
+		this(response, expires, Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * @param response
+	 *            the stored response
+	 * @param expires
+	 *            the time in milliseconds since the epoch until which the
+	 *            response is fresh
+	 * @param varying
+	 *            the values the request sent for the fields named by the Vary
+	 *            header, by lower case field name, with a null value for a
+	 *            field that was not sent
+	 */
+	public CacheEntry(Response response, long expires,
+			Map<String, String> varying) {
+		this.response = response;
+		this.expires = expires;
+		this.varying = Collections
+				.unmodifiableMap(new LinkedHashMap<String, String>(varying));
+	}
+
+	/**
+	 * @return the stored response
+	 */
+	public Response getResponse() {
+		return response;
+	}
+
+	/**
+	 * @return the time in milliseconds since the epoch until which the
+	 *         response is fresh
+	 */
+	public long getExpires() {
+		return expires;
+	}
+
+	/**
+	 * @return the values the request sent for the fields named by the Vary
+	 *         header, by lower case field name, with a null value for a field
+	 *         that was not sent
+	 */
+	public Map<String, String> getVaryingHeaders() {
+		return varying;
+	}
+
+	/**
+	 * @param now
+	 *            the current time in milliseconds since the epoch
+	 * @return true if the response can be served without revalidation
+	 */
+	public boolean isFresh(long now) {
+		return now < expires;
+	}
+
+	/**
+	 * @return an estimate of the memory used by this entry in bytes
+	 */
+	public long getSize() {
+		long size = response.getBody().length + response.getStatus().length();
+		for (Entry<String, String> header : response.getHeaders().entrySet()) {
+			size += header.getKey().length() + header.getValue().length();
+		}
+		for (Entry<String, String> header : varying.entrySet()) {
+			size += header.getKey().length()
+					+ (header.getValue() == null ? 0 : header.getValue()
+							.length());
+		}
+		return size;
+	}
+
+	/**
+	 * @param request
+	 *            the headers of a request
+	 * @param compress
+	 *            true if the request asks for compression
+	 * @return true if the request sends the same values for the fields named
+	 *         by the Vary header as the request that stored this entry
+	 */
+	boolean matches(HeaderTemplate request, boolean compress) {
+		for (Entry<String, String> header : varying.entrySet()) {
+			if (!Objects.equals(header.getValue(),
+					request.get(header.getKey(), compress))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the conditional request headers that revalidate this entry, which
+	 *         is empty if the response has no validators
+	 */
+	Map<String, String> getValidators() {
+		Map<String, String> validators = new HashMap<String, String>();
+		String etag = response.getHeaders().get("etag");
+		if (etag != null) {
+			validators.put("if-none-match", etag);
+		}
+		String lastModified = response.getHeaders().get("last-modified");
+		if (lastModified != null) {
+			validators.put("if-modified-since", lastModified);
+		}
+		return validators;
+	}
+
+	/**
+	 * Creates the entry to store for a response, if it may be stored.
+	 * 
+	 * @param response
+	 *            a response to a GET request
+	 * @param request
+	 *            the headers of the request
+	 * @param compress
+	 *            true if the request asked for compression
+	 * @param now
+	 *            the time the response was received in milliseconds since the
+	 *            epoch
+	 * @return the entry, or null if the response may not be stored
+	 */
+	static CacheEntry create(Response response, HeaderTemplate request,
+			boolean compress, long now) {
+		if (response.getStatusCode() != 200 || response.isSpilled()) {
+			return null; // spilled bodies are too large to keep around
+		}
+		Map<String, String> headers = response.getHeaders();
+		String cacheControl = lowerCase(headers.get("cache-control"));
+		String vary = headers.get("vary");
+		if (cacheControl.contains("no-store")
+				|| (vary != null && vary.trim().equals("*"))) {
+			return null;
+		}
+		if (request.get("authorization", compress) != null
+				&& !cacheControl.contains("public")
+				&& !cacheControl.contains("must-revalidate")
+				&& directive(cacheControl, "s-maxage") < 0) {
+			return null; // may be meant for this user only
+		}
+
+		long expires = expires(headers, cacheControl, now);
+		if (expires <= now && !headers.containsKey("etag")
+				&& !headers.containsKey("last-modified")) {
+			return null; // would have to be downloaded again anyway
+		}
+
+		Map<String, String> varying = new LinkedHashMap<String, String>();
+		if (vary != null) {
+			for (String field : vary.split(",")) {
+				field = field.trim().toLowerCase();
+				if (!field.isEmpty()) {
+					varying.put(field, request.get(field, compress));
+				}
+			}
+		}
+		return new CacheEntry(response, expires, varying);
+	}
+
+	/**
+	 * Creates the entry that replaces this entry after a 304 Not Modified
+	 * response. The headers of the 304 response update the stored headers.
+	 * 
+	 * @param notModified
+	 *            the 304 response
+	 * @param now
+	 *            the time the response was received in milliseconds since the
+	 *            epoch
+	 * @return the updated entry
+	 */
+	CacheEntry revalidated(Response notModified, long now) {
+		Headers headers = new Headers();
+		headers.addAll(response.getFields());
+		Headers updates = notModified.getFields();
+		Set<String> replaced = new HashSet<String>();
+		for (int i = 0; i < updates.fieldCount(); i++) {
+			String field = updates.name(i);
+			if (!field.equals("content-length")
+					&& !field.equals("content-encoding")
+					&& !field.equals("transfer-encoding")
+					&& !field.equals("connection")) {
+				if (replaced.add(field)) {
+					headers.remove(field);
+				}
+				headers.add(field, updates.value(i));
+			}
+		}
+
+		Response updated = new Response(response.getStatus(), headers,
+				response.getBody());
+		return new CacheEntry(updated, expires(headers,
+				lowerCase(headers.get("cache-control")), now), varying);
+	}
+
+	/**
+	 * @return the time until which a response is fresh, which is now if it
+	 *         must be revalidated before every use
+	 */
+	private static long expires(Map<String, String> headers,
+			String cacheControl, long now) {
+		if (cacheControl.contains("no-cache")) {
+			return now;
+		}
+
+		long maxAge = directive(cacheControl, "max-age");
+		if (maxAge >= 0) {
+			long age = parseSeconds(headers.get("age"));
+			return now + (maxAge - Math.max(age, 0)) * 1000;
+		}
+
+		String expires = headers.get("expires");
+		if (expires != null) {
+			try {
+				return ZonedDateTime.parse(expires.trim(),
+						DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()
+						.toEpochMilli();
+			} catch (DateTimeParseException e) {
+				return now; // invalid dates mean already expired
+			}
+		}
+		return now;
+	}
+
+	/**
+	 * @return the value of a numeric directive, or -1 if it is absent or
+	 *         invalid
+	 */
+	private static long directive(String cacheControl, String name) {
+		for (String part : cacheControl.split(",")) {
+			String[] pair = part.trim().split("=", 2);
+			if (pair.length == 2 && pair[0].trim().equals(name)) {
+				return parseSeconds(pair[1].trim().replace("\"", ""));
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of seconds, or -1 if the value is absent or invalid
+	 */
+	private static long parseSeconds(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String lowerCase(String value) {
+		return value == null ? "" : value.toLowerCase();
+	}
+}
@@ -0,0 +1,63 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Allows another thread to cancel a request while it is sent or while its
+ * response is read, by closing the socket of the request.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class Cancellation {
+	private PooledSocket connection;
+	private boolean cancelled;
+
+	/**
+	 * Attaches the socket that the request is sent on.
+	 * 
+	 * @param connection
+	 *            the leased socket
+	 * @throws IOException
+	 *             if the request was cancelled already
+	 */
+	synchronized void attach(PooledSocket connection) throws IOException {
+		if (cancelled) {
+			throw new InterruptedIOException("Request cancelled");
+		}
+		this.connection = connection;
+	}
+
+	/**
+	 * Detaches the socket before it is released, so a later cancel cannot
+	 * close it once the pool has leased it to another request.
+	 */
+	synchronized void detach() {
+		connection = null;
+	}
+
+	/**
+	 * @return true if the request was cancelled
+	 */
+	synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Cancels the request. A blocked read or write of the request fails with an
+	 * IOException.
+	 */
+	synchronized void cancel() {
+		cancelled = true;
+		if (connection != null) {
+			try {
+				connection.getSocket().close();
+			} catch (IOException e) {
+				// the request fails either way
+			}
+			connection = null;
+		}
+	}
+}
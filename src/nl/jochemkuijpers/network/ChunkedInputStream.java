@@ -0,0 +1,80 @@
+package nl.jochemkuijpers.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Decodes a response body sent with Transfer-Encoding: chunked. Chunks are
+ * decoded as they are read, so the body is never buffered as a whole. The
+ * trailer fields that follow the last chunk are available once the body was
+ * read completely.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class ChunkedInputStream extends BodyInputStream {
+	private final Headers trailers;
+
+	private long remaining;
+	private boolean complete;
+
+	/**
+	 * @param in
+	 *            socket InputStream, positioned at the start of the body
+	 */
+	ChunkedInputStream(HttpInputStream in) {
+		super(in);
+		this.trailers = new Headers();
+		this.remaining = 0;
+		this.complete = false;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (complete) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+
+		if (remaining == 0) {
+			remaining = in.readChunkSize();
+			if (remaining == 0) {
+				in.readHeaders(trailers);
+				complete = true;
+				return -1;
+			}
+		}
+
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n < 0) {
+			throw new EOFException("Connection closed in the middle of a chunk");
+		}
+		remaining -= n;
+
+		if (remaining == 0) {
+			// chunk data is followed by CRLF
+			in.readChunkEnd();
+		}
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	@Override
+	boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return the trailer fields. Empty until the body was read completely.
+	 */
+	Headers getTrailers() {
+		return trailers;
+	}
+}
@@ -0,0 +1,146 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes a request body with Transfer-Encoding: chunked, for bodies of which
+ * the length is not known in advance. Data is collected into chunks, and each
+ * chunk is written to the socket with a single write, including its size line.
+ * 
+ * {@link #finish()} writes the last chunk that ends the body. Closing the
+ * stream finishes the body, but does not close the socket.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class ChunkedOutputStream extends OutputStream {
+	final static int DEFAULT_CHUNK_SIZE = 16384;
+
+	/** room for the chunk size in hexadecimal and CRLF */
+	private final static int SIZE_LINE = 18;
+	private final static byte[] HEX = { '0', '1', '2', '3', '4', '5', '6',
+			'7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	private final static byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private final int limit;
+
+	private int pos;
+	private long written;
+	private boolean finished;
+
+	/**
+	 * @param out
+	 *            socket OutputStream
+	 * @param chunkSize
+	 *            the maximum number of bytes of data per chunk
+	 */
+	ChunkedOutputStream(OutputStream out, int chunkSize) {
+		this.out = out;
+		this.buffer = new byte[SIZE_LINE + chunkSize + 2];
+		this.limit = SIZE_LINE + chunkSize;
+		this.pos = SIZE_LINE;
+		this.written = 0;
+		this.finished = false;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (pos == limit) {
+			writeChunk();
+		}
+		buffer[pos++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			if (pos == limit) {
+				writeChunk();
+			}
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(b, off, buffer, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes the data collected so far as a chunk and flushes the socket.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		writeChunk();
+		out.flush();
+	}
+
+	/**
+	 * Writes the remaining data and the last chunk. Finishing the body more
+	 * than once has no effect.
+	 * 
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		writeChunk();
+		out.write(LAST_CHUNK);
+		out.flush();
+		written += LAST_CHUNK.length;
+		finished = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+	}
+
+	/**
+	 * @return the number of bytes written to the socket, including chunk size
+	 *         lines
+	 */
+	long getBytesWritten() {
+		return written;
+	}
+
+	/**
+	 * Writes the collected data as a chunk, preceded by its size line and
+	 * followed by CRLF. Nothing is written if no data was collected, as an
+	 * empty chunk would end the body.
+	 */
+	private void writeChunk() throws IOException {
+		int size = pos - SIZE_LINE;
+		if (size == 0) {
+			return;
+		}
+
+		int start = SIZE_LINE;
+		buffer[--start] = '\n';
+		buffer[--start] = '\r';
+		do {
+			buffer[--start] = HEX[size & 0xf];
+			size >>>= 4;
+		} while (size != 0);
+		buffer[pos++] = '\r';
+		buffer[pos++] = '\n';
+
+		out.write(buffer, start, pos - start);
+		written += pos - start;
+		pos = SIZE_LINE;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (finished) {
+			throw new IOException("Chunked body already finished");
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+
+/**
+ * Reads a response body without Content-Length or Transfer-Encoding, which
+ * ends when the server closes the connection. The socket can never be reused
+ * after such a response.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class CloseDelimitedInputStream extends BodyInputStream {
+
+	/**
+	 * @param in
+	 *            socket InputStream, positioned at the start of the body
+	 */
+	CloseDelimitedInputStream(HttpInputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		return in.read(b, off, len);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return in.available();
+	}
+
+	@Override
+	boolean isComplete() {
+		return false;
+	}
+}
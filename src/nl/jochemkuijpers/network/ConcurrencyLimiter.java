@@ -0,0 +1,269 @@
+package nl.jochemkuijpers.network;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of requests in flight to a host, and adjusts the limit to
+ * the latency of the host. Set a limiter with
+ * {@link Connection#setConcurrencyLimiter(ConcurrencyLimiter)}; connections to
+ * the same host should share a limiter, such as the one returned by
+ * {@link #forHost(String, int)}.
+ * 
+ * The limit is adjusted like TCP Vegas adjusts its congestion window. The
+ * lowest latency seen is taken as the latency of an idle host. From the
+ * latency of each response, the limiter estimates how many requests are
+ * queued at the host. It raises the limit by one while hardly any requests
+ * are queued, and lowers it by one when many are. A timeout halves the limit.
+ * This keeps the number of requests near the point where the host is fully
+ * used but latency does not grow yet.
+ * 
+ * Requests over the limit wait for a request to complete. When too many
+ * requests wait, or a request waited too long, it fails fast with a
+ * {@link RejectedRequestException}.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class ConcurrencyLimiter {
+	private final static int DEFAULT_INITIAL_LIMIT = 20;
+	private final static int DEFAULT_MAX_LIMIT = 200;
+	private final static int DEFAULT_MAX_QUEUE = 64;
+	private final static int DEFAULT_MAX_WAIT = 1000;
+	/** the number of samples after which the idle latency is measured again */
+	private final static int PROBE_INTERVAL = 1000;
+
+	private final static ConcurrentMap<String, ConcurrencyLimiter> shared = new ConcurrentHashMap<String, ConcurrencyLimiter>();
+
+	private final int minLimit;
+	private final int maxLimit;
+
+	private double limit;
+	private int inFlight;
+	private int queued;
+	private int maxQueue;
+	private long maxWaitNanos;
+	private long idleRtt;
+	private int samples;
+
+	/**
+	 * Creates a limiter that starts at 20 requests and adjusts between 1 and
+	 * 200 requests.
+	 */
+	public ConcurrencyLimiter() {
+		this(DEFAULT_INITIAL_LIMIT, 1, DEFAULT_MAX_LIMIT);
+	}
+
+	/**
+	 * @param initialLimit
+	 *            the initial number of requests allowed in flight
+	 * @param minLimit
+	 *            the lowest limit
+	 * @param maxLimit
+	 *            the highest limit
+	 */
+	public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+				|| initialLimit > maxLimit) {
+			throw new IllegalArgumentException(
+					"limits must satisfy 1 <= min <= initial <= max");
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = initialLimit;
+		this.maxQueue = DEFAULT_MAX_QUEUE;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_WAIT);
+		this.idleRtt = 0;
+	}
+
+	/**
+	 * Returns the limiter shared by all connections to a host that use it.
+	 * 
+	 * @param host
+	 *            destination host
+	 * @param port
+	 *            destination port
+	 * @return the shared limiter of the host
+	 */
+	public static ConcurrencyLimiter forHost(String host, int port) {
+		String key = host + ":" + port;
+		ConcurrencyLimiter limiter = shared.get(key);
+		if (limiter == null) {
+			ConcurrencyLimiter created = new ConcurrencyLimiter();
+			limiter = shared.putIfAbsent(key, created);
+			if (limiter == null) {
+				limiter = created;
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * @param maxQueue
+	 *            the maximum number of requests that wait for their turn.
+	 *            Requests over this number are rejected immediately.
+	 */
+	public synchronized void setMaxQueue(int maxQueue) {
+		if (maxQueue < 0) {
+			throw new IllegalArgumentException("maxQueue cannot be negative");
+		}
+		this.maxQueue = maxQueue;
+	}
+
+	/**
+	 * @param ms
+	 *            the maximum time a request waits for its turn, in
+	 *            milliseconds
+	 */
+	public synchronized void setMaxWait(int ms) {
+		if (ms < 0) {
+			throw new IllegalArgumentException("ms cannot be negative");
+		}
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+
+	/**
+	 * @return the current number of requests allowed in flight
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * @return the number of requests in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return the number of requests waiting for their turn
+	 */
+	public synchronized int getQueueDepth() {
+		return queued;
+	}
+
+	/**
+	 * Waits until a request may be sent.
+	 * 
+	 * @return the permit of the request, which must be released
+	 * @throws RejectedRequestException
+	 *             if the queue is full or the request waited too long
+	 */
+	synchronized Permit acquire() throws RejectedRequestException {
+		if (inFlight >= (int) limit) {
+			if (queued >= maxQueue) {
+				throw new RejectedRequestException("Concurrency limit of "
+						+ (int) limit + " reached");
+			}
+
+			long deadline = System.nanoTime() + maxWaitNanos;
+			queued++;
+			try {
+				while (inFlight >= (int) limit) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						throw new RejectedRequestException(
+								"Timed out waiting for the concurrency limit of "
+										+ (int) limit);
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedRequestException(
+						"Interrupted while waiting for the concurrency limit");
+			} finally {
+				queued--;
+			}
+		}
+		inFlight++;
+		return new Permit(this);
+	}
+
+	/**
+	 * Ends a request and adjusts the limit.
+	 * 
+	 * @param rtt
+	 *            the latency of the request in nanoseconds, or -1 if it did
+	 *            not receive a response
+	 * @param dropped
+	 *            true if the request timed out
+	 */
+	private synchronized void release(long rtt, boolean dropped) {
+		int current = inFlight;
+		inFlight--;
+
+		if (dropped) {
+			limit = Math.max(minLimit, limit / 2);
+		} else if (rtt > 0) {
+			if (idleRtt == 0 || rtt < idleRtt || ++samples >= PROBE_INTERVAL) {
+				idleRtt = rtt;
+				samples = 0;
+			}
+			// requests well below the limit say nothing about the limit
+			if (current * 2 >= limit) {
+				double log = Math.max(1, Math.log10(limit));
+				double queue = limit * (1 - (double) idleRtt / rtt);
+				if (queue <= 3 * log) {
+					limit = Math.min(maxLimit, limit + 1);
+				} else if (queue >= 6 * log) {
+					limit = Math.max(minLimit, limit - 1);
+				}
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * A request in flight. The response is marked when the response headers
+	 * are received, and the permit is released when the response is closed.
+	 */
+	static class Permit {
+		private final ConcurrencyLimiter limiter;
+		private final long start;
+		private long rtt;
+		private boolean released;
+
+		private Permit(ConcurrencyLimiter limiter) {
+			this.limiter = limiter;
+			this.start = System.nanoTime();
+			this.rtt = -1;
+			this.released = false;
+		}
+
+		/**
+		 * Records the latency of the request up to now.
+		 */
+		synchronized void responded() {
+			rtt = System.nanoTime() - start;
+		}
+
+		/**
+		 * Releases the permit of a request that received a response.
+		 */
+		void release() {
+			release(null);
+		}
+
+		/**
+		 * Releases the permit of a request. A request that failed, even after
+		 * its response headers were received, is not used as a latency
+		 * sample; a request that timed out lowers the limit.
+		 * 
+		 * @param error
+		 *            the error that failed the request, or null
+		 */
+		synchronized void release(Exception error) {
+			if (released) {
+				return;
+			}
+			released = true;
+			limiter.release(error == null ? rtt : -1,
+					error instanceof SocketTimeoutException);
+		}
+	}
+}
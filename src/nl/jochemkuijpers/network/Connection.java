@@ -1,38 +1,105 @@
 package nl.jochemkuijpers.network;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLEngine;
 
 /**
  * Sends GET, POST and POST multipart requests.
  * 
+ * A connection can be shared by multiple threads. Each request returns its own
+ * {@link Response}; the status and response headers kept by the connection
+ * itself are those of the last response received by any thread.
+ * 
+ * Sockets are kept open between requests. By default, the number of sockets
+ * to the host is not limited, so concurrent requests never wait for each
+ * other. {@link #setMaxConnections(int)} bounds it; requests beyond the bound
+ * then wait for a socket, and a {@link ResponseStream} that is never closed
+ * holds on to its socket for good.
+ * 
  * Please refer to the LICENSE file for the license corresponding to this code.
  * 
  * @author Jochem Kuijpers
  */
 public abstract class Connection {
 	private final static String DEFAULT_USER_AGENT = "Mozilla/5.0 (nl.jochemkuijpers.network 1.0)";
+	private final static int DEFAULT_MAX_CONNECTIONS = Integer.MAX_VALUE;
+	private final static int DEFAULT_IDLE_TIMEOUT = 30000;
+	private final static int DEFAULT_PIPELINE_DEPTH = 8;
+	private final static int INLINE_BODY_LIMIT = 16384;
+	private final static int DEFAULT_HEADER_BUFFER_SIZE = 8192;
+	private final static int DEFAULT_BODY_BUFFER_SIZE = 65536;
+	private final static int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private static ExecutorService hedgeExecutor;
 
 	protected final String host;
+	protected final int port;
 
-	private final int port;
 	private final String useragent;
-	private String status;
-	private Map<String, String> responseHeaders;
-	private final Map<String, String> customHeaders;
+	private final ConnectionPool pool;
+	private volatile HeaderTemplate headers;
+	private volatile Response lastResponse;
+	private volatile AsyncEngine asyncEngine;
+	private volatile Http2Transport http2;
+	private volatile HttpCache cache;
+	private volatile DnsCache dnsCache;
+	private volatile RequestListener[] listeners;
+	private volatile RetryPolicy retryPolicy;
+	private volatile ConcurrencyLimiter limiter;
 
-	protected int connectionTimeout;
-	protected int responseTimeout;
+	protected volatile int connectionTimeout;
+	protected volatile int responseTimeout;
+	private volatile int pipelineDepth;
+	private volatile boolean compression;
+	private volatile int headerBufferSize;
+	private volatile int bodyBufferSize;
+	private volatile int spillThreshold;
+	private volatile long maxBodySize;
+	private final AtomicLong compressedBytes;
+	private final AtomicLong decompressedBytes;
+	private final AtomicLong cacheHits;
+	private final AtomicLong cacheMisses;
+	private final AtomicLong cacheRevalidations;
+	private final AtomicLong retries;
+	private final AtomicLong hedges;
+	private final LatencyHistogram latencies;
 
 	/**
 	 * Set up a connection with a specified destination host and user agent.
@@ -48,11 +115,29 @@ public abstract class Connection {
 		this.host = host;
 		this.port = port;
 		this.useragent = useragent;
-		this.status = null;
-		this.responseHeaders = null;
-		this.customHeaders = new HashMap<String, String>();
+		this.headers = new HeaderTemplate(useragent, host,
+				Collections.<String, String> emptyMap());
+		this.lastResponse = null;
 		this.connectionTimeout = 30000;
 		this.responseTimeout = 60000;
+		this.pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+		this.compression = true;
+		this.headerBufferSize = DEFAULT_HEADER_BUFFER_SIZE;
+		this.bodyBufferSize = DEFAULT_BODY_BUFFER_SIZE;
+		this.spillThreshold = -1;
+		this.maxBodySize = -1;
+		this.compressedBytes = new AtomicLong();
+		this.decompressedBytes = new AtomicLong();
+		this.cacheHits = new AtomicLong();
+		this.cacheMisses = new AtomicLong();
+		this.cacheRevalidations = new AtomicLong();
+		this.retries = new AtomicLong();
+		this.hedges = new AtomicLong();
+		this.latencies = new LatencyHistogram();
+		this.dnsCache = DnsCache.getDefault();
+		this.listeners = new RequestListener[0];
+		this.pool = new ConnectionPool(DEFAULT_MAX_CONNECTIONS,
+				DEFAULT_IDLE_TIMEOUT);
 	}
 
 	/**
@@ -79,265 +164,1672 @@ public abstract class Connection {
 	protected abstract Socket createSocket() throws IOException;
 
 	/**
-	 * Connect the socket.
+	 * Layers a protocol on top of a connected socket, such as TLS. The default
+	 * implementation returns the socket itself.
 	 * 
+	 * @param socket
+	 *            a socket created by {@link #createSocket()} and connected to
+	 *            the destination host
+	 * @return the socket to send requests on
 	 * @throws IOException
 	 *             if an IO error occurred
 	 */
-	private void connectSocket(Socket socket) throws IOException {
-		socket.connect(new InetSocketAddress(host, port), connectionTimeout);
+	protected Socket layerSocket(Socket socket) throws IOException {
+		return socket;
+	}
+
+	/**
+	 * Creates the SSLEngine used to secure asynchronous requests. Plaintext
+	 * connections return null.
+	 * 
+	 * @return an SSLEngine in client mode, or null
+	 * @throws IOException
+	 *             if the SSLEngine could not be created
+	 */
+	protected SSLEngine createSSLEngine() throws IOException {
+		return null;
+	}
+
+	/**
+	 * Creates a socket and connects it to one of the addresses of the host.
+	 * If the host has multiple addresses, they are tried in parallel with a
+	 * short delay between attempts, so an unreachable address does not use up
+	 * the connection timeout.
+	 * 
+	 * @param timer
+	 *            the timer of the request, or null
+	 * @return a connected socket
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	private Socket connectSocket(RequestTimer timer) throws IOException {
+		DnsCache dns = dnsCache;
+		SocketConnector connector = new SocketConnector() {
+			@Override
+			Socket createSocket() throws IOException {
+				return Connection.this.createSocket();
+			}
+		};
+
+		long start = System.nanoTime();
+		InetAddress[] addresses = dns.resolve(host);
+		long resolved = System.nanoTime();
+		Socket socket;
+		try {
+			socket = connector.connect(addresses, port, connectionTimeout);
+		} catch (IOException e) {
+			dns.invalidate(host); // the addresses may have changed
+			throw e;
+		}
+		if (timer != null) {
+			timer.dns(resolved - start);
+			timer.connect(System.nanoTime() - resolved);
+		}
 		socket.setSoTimeout(responseTimeout);
+		// requests are written in as few writes as possible
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+
+	/**
+	 * Leases a socket from the pool, or opens and connects a new one if no
+	 * idle socket is available.
+	 * 
+	 * @param timer
+	 *            the timer of the request, or null
+	 * @return a connected socket
+	 * @throws IOException
+	 *             if an IO error occurred
+	 */
+	private PooledSocket leaseSocket(RequestTimer timer) throws IOException {
+		PooledSocket connection = pool.lease(connectionTimeout);
+		if (connection != null) {
+			connection.getSocket().setSoTimeout(responseTimeout);
+			return connection;
+		}
+
+		Socket socket = null;
+		try {
+			socket = connectSocket(timer);
+			long start = System.nanoTime();
+			Socket layered = layerSocket(socket);
+			if (timer != null) {
+				timer.tls(System.nanoTime() - start);
+			}
+			return new PooledSocket(layered, headerBufferSize);
+		} catch (IOException e) {
+			if (socket != null) {
+				socket.close();
+			}
+			pool.release(null, false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends a request and reads the response headers. Sockets are reused
+	 * between requests where possible. If a reused socket turns out to have
+	 * been closed by the server while it was idle, before any byte of the
+	 * response arrived, the request is sent again on another socket. Requests
+	 * that are not idempotent are only sent again if writing them failed.
+	 * 
+	 * If listeners are registered, the request is timed and reported to them
+	 * when the response is closed.
+	 * 
+	 * @param method
+	 *            request method
+	 * @param path
+	 *            a valid path without first slash. Should be properly
+	 *            url-encoded.
+	 * @param body
+	 *            request body, or null if there is no body
+	 * @param headers
+	 *            the header fields to send
+	 * @return the response, of which the body has not been read yet
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	private ResponseStream open(String method, String path, RequestBody body,
+			HeaderTemplate headers) throws IOException {
+		return open(method, path, body, headers, null);
+	}
+
+	/**
+	 * Sends a request that can be cancelled and reads the response headers.
+	 * 
+	 * @see #open(String, String, RequestBody, HeaderTemplate)
+	 * @param cancellation
+	 *            the cancellation of the request, or null
+	 */
+	private ResponseStream open(String method, String path, RequestBody body,
+			HeaderTemplate headers, Cancellation cancellation)
+			throws IOException {
+		ConcurrencyLimiter limiter = this.limiter;
+		ConcurrencyLimiter.Permit permit = limiter == null ? null : limiter
+				.acquire();
+		RequestListener[] listeners = this.listeners;
+		RequestTimer timer = listeners.length == 0 ? null : new RequestTimer(
+				listeners, host, method, path);
+		try {
+			return exchange(method, path, body, headers, timer, cancellation,
+					permit);
+		} catch (IOException e) {
+			try {
+				if (timer != null) {
+					timer.fail(e);
+				}
+			} finally {
+				if (permit != null) {
+					permit.release(e);
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends a request and reads the response headers.
+	 * 
+	 * @see #open(String, String, RequestBody, HeaderTemplate)
+	 * @param timer
+	 *            the timer of the request, or null
+	 * @param cancellation
+	 *            the cancellation of the request, or null
+	 * @param permit
+	 *            the concurrency limiter permit of the request, or null
+	 */
+	private ResponseStream exchange(String method, String path,
+			RequestBody body, HeaderTemplate headers, RequestTimer timer,
+			Cancellation cancellation, ConcurrencyLimiter.Permit permit)
+			throws IOException {
+		while (true) {
+			PooledSocket connection = leaseSocket(timer);
+			boolean leased = true;
+			try {
+				if (cancellation != null) {
+					cancellation.attach(connection);
+				}
+				HttpInputStream in = connection.getInputStream();
+				long received = in.getBytesReceived();
+				boolean written = false;
+				String status;
+				try {
+					if (timer != null) {
+						timer.requestStarted(connection);
+					}
+					long sent = writeRequest(connection, method, path, body,
+							headers);
+					written = true;
+					status = in.readStatusLine();
+					if (status == null) {
+						throw new EOFException(
+								"Connection closed before a response was received");
+					}
+					if (timer != null) {
+						timer.requestSent(sent);
+						timer.responseStarted();
+					}
+					if (permit != null) {
+						permit.responded();
+					}
+				} catch (IOException e) {
+					boolean responded = in.getBytesReceived() != received;
+					if (isStale(connection, e, responded)
+							&& (!written || RetryPolicy.isIdempotent(method))
+							&& (body == null || body.isRepeatable())
+							&& (cancellation == null || !cancellation
+									.isCancelled())) {
+						// stale keep-alive socket, try another one
+						leased = false;
+						release(connection, cancellation);
+						continue;
+					}
+					throw e;
+				}
+
+				Headers fields = new Headers();
+				status = readHead(in, status, fields);
+				BodyInputStream content = openBody(in, method, status, fields);
+				ResponseStream response = new ResponseStream(pool, connection,
+						status, fields, content, decode(connection, headers,
+								fields, content), isKeepAlive(status, fields),
+						timer, permit, cancellation);
+				// trailers are added to fields later, the response is immutable
+				lastResponse = new Response(status, new Headers(fields),
+						new byte[0]);
+				leased = false;
+				return response;
+			} finally {
+				if (leased) {
+					release(connection, cancellation);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes a socket that failed, after detaching it from the cancellation so
+	 * a late cancel does not act on it once it is released.
+	 * 
+	 * @param connection
+	 *            the leased socket
+	 * @param cancellation
+	 *            the cancellation of the request, or null
+	 */
+	private void release(PooledSocket connection, Cancellation cancellation) {
+		if (cancellation != null) {
+			cancellation.detach();
+		}
+		pool.release(connection, false);
+	}
+
+	/**
+	 * Decides whether a request failed because the server had closed a reused
+	 * socket while it was idle. Such a failure shows up as the end of the
+	 * stream or a reset before any byte of the response arrived. Timeouts and
+	 * interruptions are never taken for a stale socket, as the server may
+	 * still be processing the request.
+	 * 
+	 * @param connection
+	 *            the socket the request was sent on
+	 * @param e
+	 *            the error of the request
+	 * @param responded
+	 *            true if any byte of the response was received
+	 * @return true if the request may be sent again on another socket
+	 */
+	private static boolean isStale(PooledSocket connection, IOException e,
+			boolean responded) {
+		return connection.isReused() && !responded
+				&& !(e instanceof InterruptedIOException);
+	}
+
+	/**
+	 * Sends a request and reads the response completely. If a retry policy is
+	 * set, idempotent requests that fail are sent again, and GET requests may
+	 * be hedged.
+	 * 
+	 * @see #open(String, String, RequestBody, HeaderTemplate)
+	 * @return the response
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	private Response execute(String method, String path, RequestBody body,
+			HeaderTemplate headers) throws IOException {
+		RetryPolicy policy = retryPolicy;
+		if (policy == null || !RetryPolicy.isIdempotent(method)
+				|| (body != null && !body.isRepeatable())) {
+			return send(method, path, body, headers, null);
+		}
+
+		boolean hedgeable = method.equals("GET") && body == null
+				&& http2 == null;
+		policy.requestStarted();
+		int retry = 0;
+		while (true) {
+			long start = System.nanoTime();
+			try {
+				long delay = hedgeable ? policy.getHedgeDelayNanos(latencies)
+						: -1;
+				Response response = delay < 0 ? send(method, path, body,
+						headers, null) : hedge(path, headers, delay, policy);
+				if (hedgeable) {
+					latencies.record(System.nanoTime() - start);
+				}
+				return response;
+			} catch (IOException e) {
+				if (retry >= policy.getMaxRetries() || !policy.isRetryable(e)
+						|| !policy.withdraw()) {
+					throw e;
+				}
+				retry++;
+				retries.incrementAndGet();
+				try {
+					TimeUnit.NANOSECONDS.sleep(policy.getDelayNanos(retry));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a GET request, and sends it again on another socket if no response
+	 * was received after a delay. The first response is returned, and the
+	 * other request is cancelled.
+	 * 
+	 * @param path
+	 *            a valid path without first slash. Should be properly
+	 *            url-encoded.
+	 * @param headers
+	 *            the header fields to send
+	 * @param delay
+	 *            the delay in nanoseconds before the request is hedged
+	 * @param policy
+	 *            the retry policy that limits hedged requests
+	 * @return the first response
+	 * @throws IOException
+	 *             if both requests failed
+	 */
+	private Response hedge(String path, HeaderTemplate headers, long delay,
+			RetryPolicy policy) throws IOException {
+		Cancellation[] cancellations = { new Cancellation(), new Cancellation() };
+		CompletionService<Response> completion = new ExecutorCompletionService<Response>(
+				getHedgeExecutor());
+		try {
+			completion.submit(attempt(path, headers, cancellations[0]));
+			int outstanding = 1;
+			Future<Response> done = completion.poll(delay,
+					TimeUnit.NANOSECONDS);
+			if (done == null && policy.withdraw()) {
+				hedges.incrementAndGet();
+				completion.submit(attempt(path, headers, cancellations[1]));
+				outstanding++;
+			}
+
+			IOException failure = null;
+			while (outstanding > 0) {
+				if (done == null) {
+					done = completion.take();
+				}
+				outstanding--;
+				try {
+					return done.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof IOException ? (IOException) e
+								.getCause() : new IOException(e.getCause());
+					}
+				}
+				done = null;
+			}
+			throw failure;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for a response");
+		} finally {
+			for (Cancellation cancellation : cancellations) {
+				cancellation.cancel();
+			}
+		}
+	}
+
+	/**
+	 * @return a task that sends a cancellable GET request
+	 */
+	private Callable<Response> attempt(final String path,
+			final HeaderTemplate headers, final Cancellation cancellation) {
+		return new Callable<Response>() {
+			@Override
+			public Response call() throws IOException {
+				return send("GET", path, null, headers, cancellation);
+			}
+		};
+	}
+
+	/**
+	 * @return the executor that runs hedged requests, shared by all
+	 *         connections
+	 */
+	private static synchronized ExecutorService getHedgeExecutor() {
+		if (hedgeExecutor == null) {
+			hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "network-hedge");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return hedgeExecutor;
+	}
+
+	/**
+	 * Sends a request once and reads the response completely.
+	 * 
+	 * @see #open(String, String, RequestBody, HeaderTemplate)
+	 * @param cancellation
+	 *            the cancellation of the request, or null
+	 * @return the response
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	private Response send(String method, String path, RequestBody body,
+			HeaderTemplate headers, Cancellation cancellation)
+			throws IOException {
+		Http2Transport transport = http2;
+		if (transport != null) {
+			HttpResponse<InputStream> exchange = transport.send(method, path,
+					useragent, headers.getCustom(), body, responseTimeout);
+			InputStream in = exchange.body();
+			try {
+				Headers fields = Http2Transport.headers(exchange);
+				if (!method.equals("HEAD")) {
+					checkBodySize(fields.getContentLength());
+				}
+				Response response = readResponse(
+						Http2Transport.statusLine(exchange), fields, in, -1);
+				lastResponse = response;
+				return response;
+			} finally {
+				in.close();
+			}
+		}
+
+		ResponseStream response = open(method, path, body, headers,
+				cancellation);
+		try {
+			return readResponse(response.getStatus(), response.getHeaders(),
+					response.getInputStream(), response.getRemaining());
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Performs a GET request through the cache, if one is set. A fresh cached
+	 * response is returned without a request. A stale cached response with
+	 * validators is revalidated with a conditional request, and returned again
+	 * if the server answers 304 Not Modified. Other responses replace the
+	 * cached response if they may be stored. A cached response is only used
+	 * if the request sends the same values for the fields named by its Vary
+	 * header.
+	 * 
+	 * @param path
+	 *            a valid path without first slash. Should be properly
+	 *            url-encoded.
+	 * @return the response
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	private Response fetch(String path) throws IOException {
+		HttpCache cache = this.cache;
+		HeaderTemplate headers = this.headers;
+		if (cache == null) {
+			return execute("GET", path, null, headers);
+		}
+
+		HeaderTemplate request = headers;
+		boolean compress = compression;
+		String key = host + ":" + port + "/" + path;
+		CacheEntry entry = cache.get(key);
+		if (entry != null && !entry.matches(request, compress)) {
+			entry = null; // stored for a request with other Vary field values
+		}
+		if (entry != null && entry.isFresh(System.currentTimeMillis())) {
+			cacheHits.incrementAndGet();
+			lastResponse = entry.getResponse();
+			return entry.getResponse();
+		}
+
+		if (entry != null) {
+			headers = headers.with(entry.getValidators());
+		}
+		Response response = execute("GET", path, null, headers);
+		long now = System.currentTimeMillis();
+
+		if (entry != null && response.getStatusCode() == 304) {
+			cacheRevalidations.incrementAndGet();
+			CacheEntry updated = entry.revalidated(response, now);
+			cache.put(key, updated);
+			lastResponse = updated.getResponse();
+			return updated.getResponse();
+		}
+
+		cacheMisses.incrementAndGet();
+		CacheEntry created = CacheEntry.create(response, request, compress,
+				now);
+		if (created != null) {
+			cache.put(key, created);
+		} else if (entry != null) {
+			cache.remove(key);
+		}
+		return response;
 	}
 
 	/**
-	 * Reads the response from an InputStream. The response should contain a
-	 * Content-Length header or an empty array is returned, even if the
-	 * InputStream contained data.
+	 * Writes a request to a socket.
+	 * 
+	 * @param connection
+	 *            the socket to write to
+	 * @param method
+	 *            request method
+	 * @param path
+	 *            a valid path without first slash. Should be properly
+	 *            url-encoded.
+	 * @param body
+	 *            request body, or null if there is no body
+	 * @param headers
+	 *            the header fields to send
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	private long writeRequest(PooledSocket connection, String method,
+			String path, RequestBody body, HeaderTemplate headers)
+			throws IOException {
+		OutputStream out = connection.getOutputStream();
+		InlineBody inline = inlineBody(body);
+		long written = writeHead(out, method, path, body, inline, headers,
+				!pool.isKeepAlive(), compression);
+
+		if (body != null && inline == null) {
+			written += writeBody(out, connection.getSocket().getChannel(),
+					body);
+		}
+		return written;
+	}
+
+	/**
+	 * Writes a request body that is not part of the request head. A body of
+	 * unknown length is sent with chunked transfer encoding.
+	 * 
+	 * @param out
+	 *            socket OutputStream
+	 * @param channel
+	 *            the channel of the socket, or null
+	 * @param body
+	 *            request body
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	private static long writeBody(OutputStream out,
+			WritableByteChannel channel, RequestBody body) throws IOException {
+		long length = body.getLength();
+		if (length >= 0) {
+			body.writeTo(out, channel);
+			return length;
+		}
+
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out,
+				ChunkedOutputStream.DEFAULT_CHUNK_SIZE);
+		body.writeTo(chunked, null);
+		chunked.finish();
+		return chunked.getBytesWritten();
+	}
+
+	/**
+	 * Returns the body if it is small enough to be written along with the
+	 * request head.
+	 * 
+	 * @param body
+	 *            request body, or null if there is no body
+	 * @return the body to write with the head, or null if the body is written
+	 *         separately
+	 */
+	private InlineBody inlineBody(RequestBody body) {
+		if (body instanceof InlineBody
+				&& ((InlineBody) body).getLength() <= INLINE_BODY_LIMIT) {
+			return (InlineBody) body;
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the head of a request with a single write.
+	 * 
+	 * @param out
+	 *            the OutputStream to write to
+	 * @param method
+	 *            request method
+	 * @param path
+	 *            a valid path without first slash. Should be properly
+	 *            url-encoded.
+	 * @param body
+	 *            request body, or null if there is no body
+	 * @param inline
+	 *            the body to write along with the head, see
+	 *            {@link #inlineBody(RequestBody)}
+	 * @param headers
+	 *            the header fields to send
+	 * @param close
+	 *            true to ask the server to close the connection after the
+	 *            response, unless a Connection header was set
+	 * @param compress
+	 *            true to accept gzip and deflate encoded responses, unless an
+	 *            Accept-Encoding header was set
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	private int writeHead(OutputStream out, String method, String path,
+			RequestBody body, InlineBody inline, HeaderTemplate headers,
+			boolean close, boolean compress) throws IOException {
+		byte[] head;
+		if (body == null) {
+			head = headers.encodeHead(method, path, null, 0, close, compress,
+					null);
+		} else {
+			head = headers.encodeHead(method, path, body.getContentType(),
+					body.getLength(), close, compress, inline);
+		}
+		out.write(head);
+		return head.length;
+	}
+
+	/**
+	 * Sends a request asynchronously on a new non-blocking socket, or as a
+	 * stream of the HTTP/2 connection if HTTP/2 is enabled. The request body is
+	 * encoded in memory before it is sent over HTTP/1.1.
+	 * 
+	 * The host name is resolved through the DNS cache on the calling thread.
+	 * Its addresses are tried in the same order as for blocking requests, but
+	 * one at a time instead of in parallel.
+	 * 
+	 * @param method
+	 *            request method
+	 * @param path
+	 *            a valid path without first slash. Should be properly
+	 *            url-encoded.
+	 * @param body
+	 *            request body, or null if there is no body
+	 * @return a future that completes with the response
+	 */
+	private CompletableFuture<Response> submit(String method, String path,
+			RequestBody body) {
+		Http2Transport transport = http2;
+		if (transport != null) {
+			return transport.sendAsync(method, path, useragent,
+					headers.getCustom(), body, responseTimeout, maxBodySize);
+		}
+
+		try {
+			ByteArrayOutputStream request = new ByteArrayOutputStream();
+			InlineBody inline = inlineBody(body);
+			writeHead(request, method, path, body, inline, headers, true,
+					false);
+			if (body != null && inline == null) {
+				writeBody(request, null, body);
+			}
+
+			AsyncEngine engine = asyncEngine;
+			if (engine == null) {
+				engine = AsyncEngine.getDefault();
+			}
+			InetAddress[] addresses = SocketConnector.interleave(dnsCache
+					.resolve(host));
+			return engine.execute(addresses, port, createSSLEngine(),
+					ByteBuffer.wrap(request.toByteArray()), new ResponseDecoder(
+							method, spillThreshold, maxBodySize),
+					connectionTimeout, responseTimeout);
+		} catch (IOException | RuntimeException e) {
+			CompletableFuture<Response> failed = new CompletableFuture<Response>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	/**
+	 * Reads the header fields of a response. Interim (1xx) responses, such as
+	 * 100 Continue, are skipped up to the final response that follows them.
+	 * 101 Switching Protocols is final, as nothing follows it in HTTP/1.1.
 	 * 
 	 * @param in
-	 *            socket InputStream
-	 * @return a byte array with the content (no headers) of the response
+	 *            socket InputStream, positioned after the status line
+	 * @param status
+	 *            the status line that was read
+	 * @param headers
+	 *            the headers to add the fields of the final response to
+	 * @return the status line of the final response
 	 * @throws IOException
 	 *             if an error occurred
 	 */
-	private byte[] readResponse(InputStream in) throws IOException {
-		status = NetworkUtils.readLineUnbuffered(in);
-		responseHeaders = new HashMap<String, String>();
+	private static String readHead(HttpInputStream in, String status,
+			Headers headers) throws IOException {
+		in.readHeaders(headers);
+		while (isInterim(status)) {
+			status = in.readStatusLine();
+			if (status == null) {
+				throw new EOFException(
+						"Connection closed before the final response was received");
+			}
+			headers.clear();
+			in.readHeaders(headers);
+		}
+		return status;
+	}
+
+	/**
+	 * @param status
+	 *            a status line
+	 * @return true if the status line is that of an interim response
+	 */
+	private static boolean isInterim(String status) {
+		int code = NetworkUtils.parseStatusCode(status);
+		return code >= 100 && code < 200 && code != 101;
+	}
+
+	/**
+	 * Determines how the body of a response is delimited and returns an
+	 * InputStream that reads exactly that body. Responses to HEAD requests and
+	 * 101, 204 and 304 responses have no body. Otherwise, a chunked
+	 * Transfer-Encoding takes precedence over Content-Length. If neither is
+	 * present, the body ends when the server closes the connection.
+	 * 
+	 * @param in
+	 *            socket InputStream, positioned at the start of the body
+	 * @param method
+	 *            the request method
+	 * @param status
+	 *            the status line of the response
+	 * @param headers
+	 *            the headers of the response
+	 * @return the response body
+	 * @throws IOException
+	 *             if the response has an invalid Content-Length
+	 */
+	private BodyInputStream openBody(HttpInputStream in, String method,
+			String status, Headers headers) throws IOException {
+		int code = NetworkUtils.parseStatusCode(status);
+		if (method.equals("HEAD") || code == 101 || code == 204 || code == 304) {
+			return new FixedLengthInputStream(in, 0);
+		}
 
-		String headerline;
-		String[] header;
-		while (!(headerline = NetworkUtils.readLineUnbuffered(in)).isEmpty()) {
-			header = headerline.split(":", 2);
-			if (header.length != 2) {
-				continue; // illegal header?
+		if (headers.containsKey("transfer-encoding")) {
+			if (headers.isChunked()) {
+				return new ChunkedInputStream(in);
 			}
-			responseHeaders.put(header[0].toLowerCase(), header[1].trim());
+			return new CloseDelimitedInputStream(in);
 		}
 
-		String contentLength = responseHeaders.get("content-length");
-		if (contentLength == null) {
-			return new byte[0];
+		if (headers.containsKey("content-length")) {
+			long length = headers.getContentLength();
+			if (length < 0) {
+				throw new IOException("Invalid Content-Length: "
+						+ headers.get("content-length"));
+			}
+			return new FixedLengthInputStream(in, length);
 		}
 
-		long length = 0;
+		return new CloseDelimitedInputStream(in);
+	}
+
+	/**
+	 * Sends GET requests back-to-back on a single socket, without waiting for
+	 * each response, and reads the responses in order. At most depth requests
+	 * are awaiting a response at any time. If the server closes the socket
+	 * between two responses, the method returns and the unanswered requests
+	 * are left for another socket. A request is never sent again once any
+	 * byte of its response was received, or after a timeout.
+	 * 
+	 * @param paths
+	 *            the paths to request
+	 * @param responses
+	 *            the responses received so far, to which new responses are
+	 *            added
+	 * @param depth
+	 *            the maximum number of outstanding requests
+	 * @return false if the server closed the socket with requests left
+	 *         unanswered, which suggests it does not support pipelining
+	 * @throws IOException
+	 *             if an error occurred before any response was received on a
+	 *             new socket, or while a response was being received
+	 */
+	private boolean pipeline(List<String> paths, List<Response> responses,
+			int depth) throws IOException {
+		PooledSocket connection = leaseSocket(null);
+		HttpInputStream in = connection.getInputStream();
+		boolean reusable = false;
+		int start = responses.size();
+		int sent = start;
+		int received = start;
+		long mark = in.getBytesReceived();
 		try {
-			length = Long.valueOf(contentLength);
-		} catch (NumberFormatException e) {
-			return new byte[0];
+			OutputStream out = new BufferedOutputStream(
+					connection.getOutputStream());
+
+			while (received < paths.size()) {
+				if (sent < paths.size() && sent - received < depth) {
+					while (sent < paths.size() && sent - received < depth) {
+						writeHead(out, "GET", paths.get(sent), null, null,
+								headers, !pool.isKeepAlive(), compression);
+						sent++;
+					}
+					out.flush();
+				}
+
+				String status = in.readStatusLine();
+				if (status == null) {
+					throw new EOFException(
+							"Connection closed before a response was received");
+				}
+				Headers fields = new Headers();
+				status = readHead(in, status, fields);
+				BodyInputStream body = openBody(in, "GET", status, fields);
+				InputStream decoded = decode(connection, headers, fields, body);
+				Response response = readResponse(status, fields, decoded,
+						decoded == body ? body.getRemaining() : -1);
+				if (decoded != body) {
+					body.drain();
+				}
+				if (body instanceof ChunkedInputStream) {
+					fields.addAll(((ChunkedInputStream) body).getTrailers());
+				}
+
+				lastResponse = response;
+				responses.add(response);
+				received++;
+				mark = in.getBytesReceived();
+
+				if (!isKeepAlive(status, fields) || !body.isComplete()) {
+					// the server closes the socket, send the rest on another
+					return received == sent;
+				}
+			}
+
+			reusable = true;
+			return true;
+		} catch (IOException e) {
+			boolean responded = in.getBytesReceived() != mark;
+			if (received == start) {
+				if (isStale(connection, e, responded)) {
+					// stale keep-alive socket, try another one
+					return true;
+				}
+				throw e;
+			}
+			if (responded || e instanceof InterruptedIOException) {
+				throw e;
+			}
+			// the server closed the socket mid-pipeline
+			return false;
+		} finally {
+			pool.release(connection, reusable);
 		}
+	}
 
-		if (length <= 0) {
-			return new byte[0];
+	/**
+	 * Wraps a response body in a decoder if it is gzip or deflate encoded and
+	 * compression is enabled. The Content-Encoding and Content-Length headers
+	 * of a decoded response are removed, as they describe the encoded body.
+	 * 
+	 * @param connection
+	 *            the socket of the response, which provides the inflater
+	 * @param request
+	 *            the header fields of the request
+	 * @param headers
+	 *            the headers of the response
+	 * @param body
+	 *            the response body
+	 * @return an InputStream over the decoded body, or body if it is not
+	 *         decoded
+	 */
+	private InputStream decode(PooledSocket connection, HeaderTemplate request,
+			Headers headers, BodyInputStream body) {
+		String encoding = headers.get("content-encoding");
+		if (encoding == null || !compression
+				|| request.contains("accept-encoding")) {
+			return body;
+		}
+
+		encoding = encoding.trim().toLowerCase();
+		boolean gzip = encoding.equals("gzip") || encoding.equals("x-gzip");
+		if (!gzip && !encoding.equals("deflate")) {
+			return body;
 		}
 
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		headers.remove("content-encoding");
+		headers.remove("content-length");
+		return new InflatingInputStream(body, connection.getInflater(), gzip,
+				compressedBytes, decompressedBytes);
+	}
 
-		int bufferSize = 1024;
-		byte[] buffer = new byte[bufferSize];
-		int len;
-		for (long n = 0; n < length; n += bufferSize) {
-			len = in.read(buffer, 0, bufferSize);
-			if (len <= 0) {
-				break;
+	/**
+	 * Reads a response body completely. If the length of the body is known,
+	 * it is read directly into an array of that size. Otherwise it is read
+	 * into the read buffer of the current thread first, and copied into an
+	 * array of the right size at the end.
+	 * 
+	 * @param body
+	 *            the response body
+	 * @param length
+	 *            the length of the body, or -1 if it is not known
+	 * @return a byte array with the content (no headers) of the response
+	 * @throws BodyTooLargeException
+	 *             if the body exceeds the maximum body size
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	private byte[] readBody(InputStream body, long length) throws IOException {
+		checkBodySize(length);
+		if (length >= 0) {
+			if (length > MAX_ARRAY_SIZE) {
+				throw new IOException("Response body of " + length
+						+ " bytes does not fit in an array");
 			}
-			out.write(buffer, 0, (int) Math.min(len, length - n));
+			byte[] content = new byte[(int) length];
+			int pos = 0;
+			while (pos < content.length) {
+				int n = body.read(content, pos, content.length - pos);
+				if (n < 0) {
+					throw new EOFException("Connection closed with "
+							+ (content.length - pos)
+							+ " bytes of the response body remaining");
+				}
+				pos += n;
+			}
+			return content;
 		}
 
-		return out.toByteArray();
+		byte[] content = BufferPool.get(bodyBufferSize);
+		int pos = 0;
+		int n;
+		while ((n = body.read(content, pos, content.length - pos)) >= 0) {
+			pos += n;
+			checkBodySize(pos);
+			if (pos == content.length) {
+				if (content.length == MAX_ARRAY_SIZE) {
+					throw new IOException(
+							"Response body does not fit in an array");
+				}
+				content = Arrays.copyOf(content, (int) Math.min(
+						content.length * 2L, MAX_ARRAY_SIZE));
+			}
+		}
+		return Arrays.copyOf(content, pos);
+	}
+
+	/**
+	 * Reads a response body completely into a response. A body larger than
+	 * the spill threshold is written to a temporary file once it exceeds the
+	 * threshold, or right away if its length is known to exceed it.
+	 * 
+	 * @param status
+	 *            the status line
+	 * @param headers
+	 *            the response headers
+	 * @param body
+	 *            the response body
+	 * @param length
+	 *            the length of the body, or -1 if it is not known
+	 * @return the response
+	 * @throws BodyTooLargeException
+	 *             if the body exceeds the maximum body size
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	private Response readResponse(String status, Headers headers,
+			InputStream body, long length) throws IOException {
+		int threshold = spillThreshold;
+		if (threshold < 0 || (length >= 0 && length <= threshold)) {
+			return new Response(status, headers, readBody(body, length));
+		}
+
+		checkBodySize(length);
+		SpillBuffer buffer = new SpillBuffer(threshold);
+		try {
+			if (length > threshold) {
+				buffer.spill();
+			}
+			byte[] chunk = BufferPool.get(bodyBufferSize);
+			long total = 0;
+			int n;
+			while ((n = body.read(chunk, 0, chunk.length)) >= 0) {
+				total += n;
+				checkBodySize(total);
+				buffer.write(chunk, 0, n);
+			}
+			if (!buffer.isSpilled()) {
+				return new Response(status, headers, buffer.toByteArray());
+			}
+			return new Response(status, headers, buffer.toFile());
+		} catch (IOException | RuntimeException e) {
+			buffer.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks the size of a response body against the maximum body size.
+	 * 
+	 * @param size
+	 *            the length of the body, or the number of bytes read so far,
+	 *            or -1 if it is not known
+	 * @throws BodyTooLargeException
+	 *             if the size exceeds the maximum body size
+	 */
+	private void checkBodySize(long size) throws BodyTooLargeException {
+		long max = maxBodySize;
+		if (max >= 0 && size > max) {
+			throw new BodyTooLargeException("Response body exceeds " + max
+					+ " bytes", max);
+		}
+	}
+
+	/**
+	 * Determines whether the server allows the socket of a response to be used
+	 * for another request.
+	 * 
+	 * @param status
+	 *            the status line of the response
+	 * @param headers
+	 *            the headers of the response
+	 * @return false if the server asked to close the connection, or switched
+	 *         to another protocol
+	 */
+	private boolean isKeepAlive(String status, Headers headers) {
+		if (NetworkUtils.parseStatusCode(status) == 101) {
+			return false;
+		}
+		if (headers.containsKey("connection")) {
+			return !headers.isClose();
+		}
+		return !status.startsWith("HTTP/1.0");
+	}
+
+	/**
+	 * @param postData
+	 *            raw data to put in the content of a post request
+	 * @return an application/x-www-form-urlencoded request body
+	 */
+	private RequestBody formBody(String postData) {
+		return new ByteArrayBody("application/x-www-form-urlencoded",
+				postData.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * When this connection is used by multiple threads, the last response may
+	 * belong to a request of another thread. Use the methods that return a
+	 * {@link Response} instead.
+	 * 
+	 * @return The status line (e.g. HTTP/1.1 200 OK) of the last response
+	 */
+	public String getStatus() {
+		Response last = lastResponse;
+		return last == null ? null : last.getStatus();
+	}
+
+	/**
+	 * When this connection is used by multiple threads, the last response may
+	 * belong to a request of another thread. Use the methods that return a
+	 * {@link Response} instead.
+	 * 
+	 * @return the headers of the last response
+	 */
+	public Map<String, String> getResponseHeaders() {
+		Response last = lastResponse;
+		return last == null ? null : last.getHeaders();
+	}
+
+	/**
+	 * Set a custom header for all future requests. These can be cleared with
+	 * unsetHeader()
+	 * 
+	 * @param field
+	 *            the header field name
+	 * @param content
+	 *            the header field content
+	 * @throws IllegalArgumentException
+	 *             when field equals host, content-length, content-type or
+	 *             user-agent. Set the user-agent via the constructor.
+	 */
+	public synchronized void setHeader(String field, String content) {
+		if (field.equalsIgnoreCase("host")
+				|| field.equalsIgnoreCase("content-lenght")
+				|| field.equalsIgnoreCase("content-type")
+				|| field.equalsIgnoreCase("user-agent")) {
+			throw new IllegalArgumentException(field + " header cannot be set");
+		}
+
+		headers = headers.with(field.toLowerCase().trim(), content.trim());
+	}
+
+	/**
+	 * Unsets a custom header for all future requests. If the field was never
+	 * set, nothing happens.
+	 * 
+	 * @param field
+	 *            the header field name.
+	 */
+	public synchronized void unsetHeader(String field) {
+		headers = headers.without(field.toLowerCase().trim());
+	}
+
+	/**
+	 * Sets the maximum time the socket can take to make a connection.
+	 * 
+	 * @param ms
+	 *            the number of milliseconds to wait
+	 */
+	public void setConnectionTimeout(int ms) {
+		if (ms <= 0) {
+			throw new IllegalArgumentException("ms must be positive");
+		}
+		this.connectionTimeout = ms;
+	}
+
+	/**
+	 * Sets the maximum time the server can take to send a response.
+	 * 
+	 * @param ms
+	 *            the number of milliseconds to wait
+	 */
+	public void setResponseTimeout(int ms) {
+		if (ms <= 0) {
+			throw new IllegalArgumentException("ms must be positive");
+		}
+		this.responseTimeout = ms;
+	}
+
+	/**
+	 * Enables or disables HTTP/1.1 keep-alive. When enabled (the default),
+	 * sockets are kept open after a request and reused by later requests to
+	 * save the TCP (and TLS) handshake.
+	 * 
+	 * @param keepAlive
+	 *            true to keep sockets open between requests
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		pool.setKeepAlive(keepAlive);
+	}
+
+	/**
+	 * Sets the maximum number of sockets, idle or in use, that this connection
+	 * keeps to its host. By default there is no maximum. Once the maximum is
+	 * reached, a request waits at most the connection timeout for a socket to
+	 * become available, and fails with a SocketTimeoutException otherwise.
+	 * 
+	 * @param max
+	 *            the maximum number of sockets, or Integer.MAX_VALUE for no
+	 *            maximum
+	 */
+	public void setMaxConnections(int max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("max must be positive");
+		}
+		pool.setMaxConnections(max);
+	}
+
+	/**
+	 * Sets the maximum time a socket is kept open while it is not used.
+	 * 
+	 * @param ms
+	 *            the number of milliseconds to keep an idle socket open
+	 */
+	public void setIdleTimeout(int ms) {
+		if (ms <= 0) {
+			throw new IllegalArgumentException("ms must be positive");
+		}
+		pool.setIdleTimeout(ms);
+	}
+
+	/**
+	 * Sets the engine that drives asynchronous requests of this connection.
+	 * 
+	 * @param engine
+	 *            the engine to use, or null to use the default engine
+	 */
+	public void setAsyncEngine(AsyncEngine engine) {
+		this.asyncEngine = engine;
+	}
+
+	/**
+	 * Routes complete and asynchronous requests through an HTTP/2 transport.
+	 * Streaming and pipelined requests keep using HTTP/1.1 sockets.
+	 * 
+	 * @param transport
+	 *            the transport to use, or null to use HTTP/1.1 only
+	 */
+	void setHttp2Transport(Http2Transport transport) {
+		this.http2 = transport;
+	}
+
+	/**
+	 * @return the HTTP/2 transport, or null if HTTP/2 is not used
+	 */
+	Http2Transport getHttp2Transport() {
+		return http2;
+	}
+
+	/**
+	 * Enables or disables compressed responses. When enabled, requests ask for
+	 * gzip or deflate encoded responses, which are decompressed while the body
+	 * is read. Asynchronous and HTTP/2 requests do not ask for compression.
+	 * Compression is enabled by default; setting an Accept-Encoding header
+	 * disables automatic decompression.
+	 * 
+	 * @param enabled
+	 *            true to accept compressed responses
+	 */
+	public void setCompressionEnabled(boolean enabled) {
+		this.compression = enabled;
+	}
+
+	/**
+	 * @return the total number of compressed body bytes received
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	/**
+	 * @return the total number of bytes the compressed bodies decompressed to
+	 */
+	public long getDecompressedBytes() {
+		return decompressedBytes.get();
+	}
+
+	/**
+	 * Sets the size of the buffer that response heads are parsed in. Each
+	 * socket has its own buffer, so the size applies to new sockets. The
+	 * buffer grows for longer header lines.
+	 * 
+	 * @param bytes
+	 *            the buffer size in bytes
+	 */
+	public void setHeaderBufferSize(int bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("bytes must be positive");
+		}
+		this.headerBufferSize = bytes;
+	}
+
+	/**
+	 * Sets the size of the buffer that response bodies of unknown length are
+	 * read into before they are copied into an array of the right size. Each
+	 * thread that reads responses keeps one such buffer.
+	 * 
+	 * @param bytes
+	 *            the buffer size in bytes
+	 */
+	public void setBodyBufferSize(int bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("bytes must be positive");
+		}
+		this.bodyBufferSize = bytes;
+	}
+
+	/**
+	 * Sets the size above which a response body is written to a temporary
+	 * file instead of being kept in memory. A body of unknown length is kept
+	 * in memory until it exceeds the threshold. A spilled body is read with
+	 * {@link Response#getBodyStream()} or {@link Response#getBodyBuffer()},
+	 * and its file is deleted when the response is closed. Methods that return
+	 * the body as an array still read it into memory. Asynchronous requests
+	 * spill their bodies too, except over HTTP/2.
+	 * 
+	 * @param bytes
+	 *            the maximum number of bytes of a body kept in memory, or -1
+	 *            to always keep bodies in memory
+	 */
+	public void setSpillThreshold(int bytes) {
+		if (bytes < -1) {
+			throw new IllegalArgumentException("bytes must be -1 or more");
+		}
+		this.spillThreshold = bytes;
+	}
+
+	/**
+	 * Sets the maximum size of a response body that is read completely. A
+	 * larger body fails the request with a {@link BodyTooLargeException},
+	 * right after the response headers if the body has a Content-Length, or
+	 * as soon as the maximum is exceeded otherwise. The size of a compressed
+	 * body is that after decompression. Asynchronous requests are limited as
+	 * well, and their future completes with the exception. Streaming requests
+	 * and downloads to a file are not limited.
+	 * 
+	 * @param bytes
+	 *            the maximum body size in bytes, or -1 for no maximum
+	 */
+	public void setMaxBodySize(long bytes) {
+		if (bytes < -1) {
+			throw new IllegalArgumentException("bytes must be -1 or more");
+		}
+		this.maxBodySize = bytes;
+	}
+
+	/**
+	 * Sets the cache used to look up the addresses of the host.
+	 * 
+	 * @param cache
+	 *            the cache to use, or null to use the shared default cache
+	 */
+	public void setDnsCache(DnsCache cache) {
+		this.dnsCache = cache == null ? DnsCache.getDefault() : cache;
+	}
+
+	/**
+	 * Sets the cache for GET requests made with {@link #get(String)},
+	 * {@link #getResponse(String)} and the other get methods that return a
+	 * complete response. Streaming, pipelined and asynchronous requests bypass
+	 * the cache.
+	 * 
+	 * @param cache
+	 *            the cache to use, or null to disable caching
+	 */
+	public void setCache(HttpCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return the number of GET requests served from the cache without a
+	 *         request
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return the number of GET requests with a cache set that downloaded the
+	 *         full response
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * @return the number of GET requests served from the cache after the
+	 *         server confirmed the cached response was not modified
+	 */
+	public long getCacheRevalidations() {
+		return cacheRevalidations.get();
+	}
+
+	/**
+	 * Sets the policy for retrying failed requests and hedging slow GET
+	 * requests. Only requests that read the response completely are retried,
+	 * such as {@link #get(String)} and {@link #getResponse(String)}; streaming
+	 * requests are not.
+	 * 
+	 * @param policy
+	 *            the policy to use, or null to never retry
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+		this.retryPolicy = policy;
+	}
+
+	/**
+	 * Sets the limiter that bounds the number of requests in flight to the
+	 * host. Connections to the same host should share a limiter, such as
+	 * {@link ConcurrencyLimiter#forHost(String, int)}. Pipelined and
+	 * asynchronous requests, and requests sent over HTTP/2, are not limited.
+	 * 
+	 * @param limiter
+	 *            the limiter to use, or null to not limit requests
+	 */
+	public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * @return the number of times a failed request was sent again
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return the number of hedged requests sent because a GET request was
+	 *         slower than the hedge percentile
+	 */
+	public long getHedges() {
+		return hedges.get();
 	}
 
 	/**
-	 * Writes the custom headers to a string and returns it.
+	 * Sets the maximum number of requests that {@link #getPipelined(List)}
+	 * sends ahead on a socket before their responses arrive.
 	 * 
-	 * @return the custom headers.
+	 * @param depth
+	 *            the maximum number of outstanding requests per socket
 	 */
-	private String getCustomHeaders() {
-		StringBuilder sb = new StringBuilder();
-
-		for (Entry<String, String> entry : customHeaders.entrySet()) {
-			sb.append(entry.getKey());
-			sb.append(": ");
-			sb.append(entry.getValue());
-			sb.append("\r\n");
+	public void setPipelineDepth(int depth) {
+		if (depth <= 0) {
+			throw new IllegalArgumentException("depth must be positive");
 		}
-
-		return sb.toString();
+		this.pipelineDepth = depth;
 	}
 
 	/**
-	 * @return a sufficiently unique boundary string for multipart requests
+	 * Adds a listener that receives the phase timings of every request made
+	 * with this connection. Pipelined and asynchronous requests, and requests
+	 * sent over HTTP/2, are not reported.
+	 * 
+	 * @param listener
+	 *            the listener to add
 	 */
-	private String generateBoundary() {
-		return "--------------------------------boundary-"
-				+ (System.currentTimeMillis() ^ System.nanoTime());
+	public synchronized void addListener(RequestListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener must not be null");
+		}
+		RequestListener[] added = Arrays.copyOf(listeners,
+				listeners.length + 1);
+		added[listeners.length] = listener;
+		listeners = added;
 	}
 
 	/**
-	 * Builds the body of a multipart requests with the specified boundary
-	 * string, form fields and file fields.
+	 * Removes a listener added with {@link #addListener(RequestListener)}.
 	 * 
-	 * @param boundary
-	 *            a valid multipart boundary string
-	 * @param formFields
-	 *            a mapping from field name to field value. These should not be
-	 *            url-encoded.
-	 * @param fileFields
-	 *            a mapping from field name to InputFile. These values should
-	 *            not be url-encoded.
-	 * @return the multipart request body
-	 * @throws IOException
-	 *             if an error occurred
+	 * @param listener
+	 *            the listener to remove
 	 */
-	private byte[] buildMultipart(String boundary,
-			Map<String, String> formFields, Map<String, InputFile> fileFields)
-			throws IOException {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-				buffer, StandardCharsets.UTF_8));
-
-		// fields
-		for (Entry<String, String> entry : formFields.entrySet()) {
-			writer.write("--" + boundary + "\r\n");
-			writer.write("Content-Disposition: form-data; name=\"");
-			writer.write(NetworkUtils.urlEncode(entry.getKey()));
-			writer.write("\";\r\n");
-			writer.write("Content-type: text/plain; charset=utf-8\r\n\r\n");
-
-			writer.write(entry.getValue());
-			writer.write("\r\n");
+	public synchronized void removeListener(RequestListener listener) {
+		List<RequestListener> remaining = new ArrayList<RequestListener>(
+				Arrays.asList(listeners));
+		if (remaining.remove(listener)) {
+			listeners = remaining.toArray(new RequestListener[remaining
+					.size()]);
 		}
+	}
 
-		// files
-		for (Entry<String, InputFile> entry : fileFields.entrySet()) {
-			InputFile file = entry.getValue();
-
-			writer.write("--" + boundary + "\r\n");
-			writer.write("Content-Disposition: form-data; name=\"");
-			writer.write(NetworkUtils.urlEncode(entry.getKey()));
-			writer.write("\"; filename=\"");
-			writer.write(NetworkUtils.urlEncode(file.getFileName()));
-			writer.write("\"\r\n");
-			writer.write("Content-Type: ");
-			writer.write(file.getContentType());
-			writer.write("\r\n\r\n");
-
-			writer.flush();
-
-			// binary write
-			buffer.write(file.getContent());
-			buffer.flush();
-
-			writer.write("\r\n");
-		}
-		writer.write("--" + boundary + "--\r\n");
-		writer.flush();
-		return buffer.toByteArray();
+	/**
+	 * Closes all sockets that are currently kept open for reuse.
+	 */
+	public void closeIdleConnections() {
+		pool.closeIdle();
 	}
 
 	/**
-	 * @return The status line (e.g. HTTP/1.1 200 OK) of the last response
+	 * Performs a GET request and returns the response body as a byte array and
+	 * sets the status and responseHeader members.
+	 * 
+	 * @param path
+	 *            a valid path without first slash. To request the root path,
+	 *            set an empty string. Should be properly url-encoded.
+	 * @return response body as a byte array, or empty byte array.
+	 * @throws IOException
+	 *             if an error occurred
 	 */
-	public String getStatus() {
-		return status;
+	public byte[] get(String path) throws IOException {
+		return bodyOf(getResponse(path));
 	}
 
 	/**
-	 * @return the headers of the last response
+	 * Performs a GET request and returns the response without reading its
+	 * body, and sets the status and responseHeader members. The body can be
+	 * read from the returned response in constant memory. The response must be
+	 * closed after use.
+	 * 
+	 * @param path
+	 *            a valid path without first slash. To request the root path,
+	 *            set an empty string. Should be properly url-encoded.
+	 * @return the response
+	 * @throws IOException
+	 *             if an error occurred
 	 */
-	public Map<String, String> getResponseHeaders() {
-		return responseHeaders;
+	public ResponseStream getStream(String path) throws IOException {
+		return open("GET", path, null, headers);
 	}
 
 	/**
-	 * Set a custom header for all future requests. These can be cleared with
-	 * unsetHeader()
+	 * Performs a GET request and reads the response body into a ByteBuffer.
+	 * A direct buffer can be passed to channels and native code without
+	 * another copy. Like {@link #getStream(String)}, this request does not use
+	 * the cache or HTTP/2.
 	 * 
-	 * @param field
-	 *            the header field name
-	 * @param content
-	 *            the header field content
-	 * @throws IllegalArgumentException
-	 *             when field equals host, content-length, content-type or
-	 *             user-agent. Set the user-agent via the constructor.
+	 * @param path
+	 *            a valid path without first slash. To request the root path,
+	 *            set an empty string. Should be properly url-encoded.
+	 * @param direct
+	 *            true to return a direct buffer, false for a heap buffer
+	 * @return a buffer with the response body between position and limit
+	 * @throws IOException
+	 *             if an error occurred
 	 */
-	public void setHeader(String field, String content) {
-		if (field.equalsIgnoreCase("host")
-				|| field.equalsIgnoreCase("content-lenght")
-				|| field.equalsIgnoreCase("content-type")
-				|| field.equalsIgnoreCase("user-agent")) {
-			throw new IllegalArgumentException(field + " header cannot be set");
-		}
+	public ByteBuffer getBuffer(String path, boolean direct)
+			throws IOException {
+		ResponseStream response = open("GET", path, null, headers);
+		try {
+			InputStream in = response.getInputStream();
+			long length = response.getRemaining();
+			if (!direct) {
+				return ByteBuffer.wrap(readBody(in, length));
+			}
+			if (length < 0) {
+				byte[] content = readBody(in, length);
+				ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+				buffer.put(content);
+				buffer.flip();
+				return buffer;
+			}
 
-		customHeaders.put(field.toLowerCase().trim(), content.trim());
+			checkBodySize(length);
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Response body of " + length
+						+ " bytes does not fit in a buffer");
+			}
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) length);
+			byte[] chunk = BufferPool.get(bodyBufferSize);
+			while (buffer.hasRemaining()) {
+				int n = in.read(chunk, 0,
+						Math.min(chunk.length, buffer.remaining()));
+				if (n < 0) {
+					throw new EOFException("Connection closed with "
+							+ buffer.remaining()
+							+ " bytes of the response body remaining");
+				}
+				buffer.put(chunk, 0, n);
+			}
+			buffer.flip();
+			return buffer;
+		} finally {
+			response.close();
+		}
 	}
 
 	/**
-	 * Unsets a custom header for all future requests. If the field was never
-	 * set, nothing happens.
+	 * Performs a GET request for a byte range of the unencoded body and reads
+	 * the response headers.
 	 * 
-	 * @param field
-	 *            the header field name.
+	 * @param path
+	 *            a valid path without first slash. Should be properly
+	 *            url-encoded.
+	 * @param first
+	 *            the offset of the first byte
+	 * @param last
+	 *            the offset of the last byte (inclusive)
+	 * @param validator
+	 *            an ETag or Last-Modified date to send as If-Range, or null
+	 * @return the response, of which the body has not been read yet
+	 * @throws IOException
+	 *             if an error occurred
 	 */
-	public void unsetHeader(String field) {
-		customHeaders.remove(field.toLowerCase().trim());
+	ResponseStream openRange(String path, long first, long last,
+			String validator) throws IOException {
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("range", "bytes=" + first + "-" + last);
+		fields.put("accept-encoding", "identity");
+		if (validator != null) {
+			fields.put("if-range", validator);
+		}
+		return open("GET", path, null, headers.with(fields));
 	}
 
 	/**
-	 * Sets the maximum time the socket can take to make a connection.
+	 * Performs a GET request and writes the response body to a file, which is
+	 * created or replaced. The body is never held in memory as a whole. Like
+	 * {@link #getStream(String)}, this request does not use the cache or
+	 * HTTP/2.
 	 * 
-	 * @param ms
-	 *            the number of milliseconds to wait
+	 * @see #download(String, Path, boolean, MessageDigest)
+	 * @param path
+	 *            a valid path without first slash. To request the root path,
+	 *            set an empty string. Should be properly url-encoded.
+	 * @param target
+	 *            the file to write the body to
+	 * @return the response, with an empty body
+	 * @throws IOException
+	 *             if an error occurred
 	 */
-	public void setConnectionTimeout(int ms) {
-		if (ms <= 0) {
-			throw new IllegalArgumentException("ms must be positive");
-		}
-		this.connectionTimeout = ms;
+	public Response download(String path, Path target) throws IOException {
+		return download(path, target, false, null);
 	}
 
 	/**
-	 * Sets the maximum time the server can take to send a response.
+	 * Performs a GET request and writes the response body to a file, which is
+	 * created or replaced. The body is written for any status code, so check
+	 * the status of the returned response.
 	 * 
-	 * @param ms
-	 *            the number of milliseconds to wait
+	 * Over plain HTTP, a body of known length is transferred from the socket
+	 * channel to the file channel directly. Other bodies are copied through a
+	 * pooled buffer of {@link #setBodyBufferSize(int)} bytes.
+	 * 
+	 * @param path
+	 *            a valid path without first slash. To request the root path,
+	 *            set an empty string. Should be properly url-encoded.
+	 * @param target
+	 *            the file to write the body to
+	 * @param fsync
+	 *            true to force the file to the storage device before returning
+	 * @param digest
+	 *            a digest to update with the body while it is written (e.g.
+	 *            SHA-256), or null
+	 * @return the response, with an empty body
+	 * @throws IOException
+	 *             if an error occurred
 	 */
-	public void setResponseTimeout(int ms) {
-		if (ms <= 0) {
-			throw new IllegalArgumentException("ms must be positive");
+	public Response download(String path, Path target, boolean fsync,
+			MessageDigest digest) throws IOException {
+		ResponseStream response = open("GET", path, null, headers);
+		try (FileChannel file = FileChannel.open(target,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			response.transferTo(file, digest, responseTimeout, bodyBufferSize);
+			if (fsync) {
+				file.force(true);
+			}
+		} finally {
+			response.close();
 		}
-		this.responseTimeout = ms;
+		return new Response(response.getStatus(), response.getHeaders(),
+				new byte[0]);
 	}
 
 	/**
-	 * Performs a GET request and returns the response body as a byte array and
-	 * sets the status and responseHeader members.
+	 * Performs a GET request and returns the complete response. This method
+	 * can safely be called by multiple threads at once. If a cache is set, the
+	 * response may be served from the cache.
 	 * 
 	 * @param path
 	 *            a valid path without first slash. To request the root path,
 	 *            set an empty string. Should be properly url-encoded.
-	 * @return response body as a byte array, or empty byte array.
+	 * @return the response
 	 * @throws IOException
 	 *             if an error occurred
 	 */
-	public byte[] get(String path) throws IOException {
-		Socket socket = createSocket();
-		connectSocket(socket);
-
-		OutputStream out = socket.getOutputStream();
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
-
-		writer.write("GET /" + path + " HTTP/1.1\r\n");
-		writer.write("User-Agent: " + useragent + "\r\n");
-		writer.write("Host: " + host + "\r\n");
-		if (customHeaders.size() > 0) {
-			writer.write(getCustomHeaders());
-		}
-		writer.write("\r\n");
-		writer.flush();
+	public Response getResponse(String path) throws IOException {
+		return fetch(path);
+	}
 
-		byte[] response = readResponse(socket.getInputStream());
-		socket.close();
-		return response;
+	/**
+	 * Performs a GET request asynchronously. The request runs on the event
+	 * loop threads of the async engine and does not change the status and
+	 * responseHeader members. It does not block the calling thread, except to
+	 * resolve the host name if it is not in the DNS cache yet.
+	 * 
+	 * @param path
+	 *            a valid path without first slash. To request the root path,
+	 *            set an empty string. Should be properly url-encoded.
+	 * @return a future that completes with the response, or completes
+	 *         exceptionally with an IOException if an error occurred
+	 */
+	public CompletableFuture<Response> getAsync(String path) {
+		return submit("GET", path, null);
 	}
 
 	/**
@@ -383,6 +1875,44 @@ public abstract class Connection {
 		return get(path + '?' + query);
 	}
 
+	/**
+	 * Performs a batch of GET requests using HTTP/1.1 pipelining: requests are
+	 * written back-to-back on one socket without waiting for each response,
+	 * which saves a round trip per request on high-latency links. At most the
+	 * pipeline depth of requests is outstanding at once.
+	 * 
+	 * If the server closes the socket between two responses, the unanswered
+	 * requests are sent again on a new socket. After such a failure, the
+	 * remaining requests are sent one at a time, for servers that do not
+	 * support pipelining. A request is not sent again if the connection timed
+	 * out or failed while its response was being received; the error is
+	 * thrown instead, and the responses received so far are closed.
+	 * 
+	 * @param paths
+	 *            valid paths without first slash. Should be properly
+	 *            url-encoded.
+	 * @return the responses, in the same order as the paths
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	public List<Response> getPipelined(List<String> paths) throws IOException {
+		List<Response> responses = new ArrayList<Response>(paths.size());
+		int depth = pipelineDepth;
+		try {
+			while (responses.size() < paths.size()) {
+				if (!pipeline(paths, responses, depth)) {
+					depth = 1;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			for (Response response : responses) {
+				response.close();
+			}
+			throw e;
+		}
+		return responses;
+	}
+
 	/**
 	 * Performs a POST request and returns the response body as a byte array and
 	 * sets the status and responseHeader members.
@@ -418,31 +1948,72 @@ public abstract class Connection {
 	 *             if an error occurred
 	 */
 	public byte[] post(String path, String postData) throws IOException {
-		Socket socket = createSocket();
-		connectSocket(socket);
-
-		OutputStream out = socket.getOutputStream();
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
-
-		byte[] content = postData.getBytes(StandardCharsets.UTF_8);
+		return bodyOf(postResponse(path, postData));
+	}
 
-		writer.write("POST /" + path + " HTTP/1.1\r\n");
-		writer.write("User-Agent: " + useragent + "\r\n");
-		writer.write("Host: " + host + "\r\n");
-		writer.write("Content-Type: application/x-www-form-urlencoded\r\n");
-		writer.write("Content-Length: " + content.length + "\r\n");
-		if (customHeaders.size() > 0) {
-			writer.write(getCustomHeaders());
-		}
-		writer.write("\r\n");
-		writer.flush();
+	/**
+	 * Performs a POST request and returns the response without reading its
+	 * body, and sets the status and responseHeader members. The body can be
+	 * read from the returned response in constant memory. The response must be
+	 * closed after use.
+	 * 
+	 * Sends data as Content-Type: application/x-www-form-urlencoded
+	 * 
+	 * @param path
+	 *            a valid path without first slash and without query string. To
+	 *            request the root path, set an empty string. Should be properly
+	 *            url-encoded.
+	 * @param postData
+	 *            raw data to put in the content of a post request.
+	 * @return the response
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	public ResponseStream postStream(String path, String postData)
+			throws IOException {
+		return open("POST", path, formBody(postData), headers);
+	}
 
-		out.write(content);
-		out.flush();
+	/**
+	 * Performs a POST request and returns the complete response. This method
+	 * can safely be called by multiple threads at once.
+	 * 
+	 * Sends data as Content-Type: application/x-www-form-urlencoded
+	 * 
+	 * @param path
+	 *            a valid path without first slash and without query string. To
+	 *            request the root path, set an empty string. Should be properly
+	 *            url-encoded.
+	 * @param postData
+	 *            raw data to put in the content of a post request.
+	 * @return the response
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	public Response postResponse(String path, String postData)
+			throws IOException {
+		return execute("POST", path, formBody(postData), headers);
+	}
 
-		byte[] response = readResponse(socket.getInputStream());
-		socket.close();
-		return response;
+	/**
+	 * Performs a POST request asynchronously. The request runs on the event
+	 * loop threads of the async engine and does not change the status and
+	 * responseHeader members. It does not block the calling thread, except to
+	 * resolve the host name if it is not in the DNS cache yet.
+	 * 
+	 * Sends data as Content-Type: application/x-www-form-urlencoded
+	 * 
+	 * @param path
+	 *            a valid path without first slash and without query string. To
+	 *            request the root path, set an empty string. Should be properly
+	 *            url-encoded.
+	 * @param postData
+	 *            raw data to put in the content of a post request.
+	 * @return a future that completes with the response, or completes
+	 *         exceptionally with an IOException if an error occurred
+	 */
+	public CompletableFuture<Response> postAsync(String path, String postData) {
+		return submit("POST", path, formBody(postData));
 	}
 
 	/**
@@ -463,8 +2034,8 @@ public abstract class Connection {
 	 *             if an error occurred
 	 */
 	public byte[] post(String path, Map<String, String> fields)
-			throws IOException {		
-		return post(path, NetworkUtils.mapToQueryString(fields));
+			throws IOException {
+		return bodyOf(execute("POST", path, new FormBody(fields), headers));
 	}
 
 	/**
@@ -489,33 +2060,33 @@ public abstract class Connection {
 	 */
 	public byte[] post(String path, Map<String, String> formFields,
 			Map<String, InputFile> fileFields) throws IOException {
-		Socket socket = createSocket();
-		connectSocket(socket);
-
-		OutputStream out = socket.getOutputStream();
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
-
-		String boundary = generateBoundary();
-		byte[] content = buildMultipart(boundary, formFields, fileFields);
-
-		writer.write("POST /" + path + " HTTP/1.1\r\n");
-		writer.write("User-Agent: " + useragent + "\r\n");
-		writer.write("Host: " + host + "\r\n");
-		writer.write("Content-Type: multipart/form-data; boundary=" + boundary
-				+ "\r\n");
-		writer.write("Content-Length: " + content.length + "\r\n");
-		if (customHeaders.size() > 0) {
-			writer.write(getCustomHeaders());
-		}
-		writer.write("\r\n");
-		writer.flush();
-
-		out.write(content);
-		out.flush();
+		return bodyOf(postResponse(path, formFields, fileFields));
+	}
 
-		byte[] response = readResponse(socket.getInputStream());
-		socket.close();
-		return response;
+	/**
+	 * Performs a POST request and returns the complete response. This method
+	 * can safely be called by multiple threads at once.
+	 * 
+	 * Sends data as Content-Type: multipart/form-data
+	 * 
+	 * @param path
+	 *            a valid path without first slash and without query string. To
+	 *            request the root path, set an empty string. Should be properly
+	 *            url-encoded.
+	 * @param formFields
+	 *            a mapping from field name to field value. These should not be
+	 *            url-encoded.
+	 * @param fileFields
+	 *            a mapping from field name to InputFile. These values should
+	 *            not be url-encoded.
+	 * @return the response
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	public Response postResponse(String path, Map<String, String> formFields,
+			Map<String, InputFile> fileFields) throws IOException {
+		return execute("POST", path,
+				new MultipartBody(formFields, fileFields), headers);
 	}
 
 	/**
@@ -547,11 +2118,131 @@ public abstract class Connection {
 		return post(path, formFields, fileFields);
 	}
 
+	/**
+	 * Performs a POST request with a body read from a stream, and returns the
+	 * complete response. The body is sent with chunked transfer encoding while
+	 * it is read, so its length need not be known in advance. The request is
+	 * not sent again after a failure, as the body cannot be read twice.
+	 * 
+	 * The other postResponse and putResponse overloads that take a stream, a
+	 * supplier or a publisher send their body in the same way.
+	 * 
+	 * @param path
+	 *            a valid path without first slash and without query string. To
+	 *            request the root path, set an empty string. Should be properly
+	 *            url-encoded.
+	 * @param contentType
+	 *            content type of the body, or null to send no Content-Type
+	 * @param in
+	 *            the stream to read the body from. It is read to its end but
+	 *            not closed.
+	 * @return the response
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	public Response postResponse(String path, String contentType,
+			InputStream in) throws IOException {
+		return execute("POST", path, new StreamBody(contentType, in), headers);
+	}
+
+	/**
+	 * Performs a POST request with a body taken from a supplier, and returns
+	 * the complete response.
+	 * 
+	 * @see #postResponse(String, String, InputStream)
+	 * @param supplier
+	 *            the supplier of the body, which is called for the next buffer
+	 *            once the previous one was written, and returns null at the
+	 *            end of the body
+	 */
+	public Response postResponse(String path, String contentType,
+			Supplier<ByteBuffer> supplier) throws IOException {
+		return execute("POST", path, new SupplierBody(contentType, supplier),
+				headers);
+	}
+
+	/**
+	 * Performs a POST request with a body published by a publisher, and
+	 * returns the complete response.
+	 * 
+	 * @see #postResponse(String, String, InputStream)
+	 * @param publisher
+	 *            the publisher of the body. Buffers are requested as earlier
+	 *            ones are written, so a slow network slows down the publisher.
+	 */
+	public Response postResponse(String path, String contentType,
+			Flow.Publisher<ByteBuffer> publisher) throws IOException {
+		return execute("POST", path, new PublisherBody(contentType, publisher),
+				headers);
+	}
+
+	/**
+	 * Performs a PUT request with a body read from a stream, and returns the
+	 * complete response.
+	 * 
+	 * @see #postResponse(String, String, InputStream)
+	 * @param in
+	 *            the stream to read the body from. It is read to its end but
+	 *            not closed.
+	 */
+	public Response putResponse(String path, String contentType,
+			InputStream in) throws IOException {
+		return execute("PUT", path, new StreamBody(contentType, in), headers);
+	}
+
+	/**
+	 * Performs a PUT request with a body taken from a supplier, and returns
+	 * the complete response.
+	 * 
+	 * @see #postResponse(String, String, InputStream)
+	 * @param supplier
+	 *            the supplier of the body, which is called for the next buffer
+	 *            once the previous one was written, and returns null at the
+	 *            end of the body
+	 */
+	public Response putResponse(String path, String contentType,
+			Supplier<ByteBuffer> supplier) throws IOException {
+		return execute("PUT", path, new SupplierBody(contentType, supplier),
+				headers);
+	}
+
+	/**
+	 * Performs a PUT request with a body published by a publisher, and
+	 * returns the complete response.
+	 * 
+	 * @see #postResponse(String, String, InputStream)
+	 * @param publisher
+	 *            the publisher of the body. Buffers are requested as earlier
+	 *            ones are written, so a slow network slows down the publisher.
+	 */
+	public Response putResponse(String path, String contentType,
+			Flow.Publisher<ByteBuffer> publisher) throws IOException {
+		return execute("PUT", path, new PublisherBody(contentType, publisher),
+				headers);
+	}
+
+	/**
+	 * Returns the body of a response as an array, and deletes the temporary
+	 * file of a spilled body afterwards.
+	 * 
+	 * @param response
+	 *            the response
+	 * @return the response body
+	 */
+	private static byte[] bodyOf(Response response) {
+		try {
+			return response.getBody();
+		} finally {
+			response.close();
+		}
+	}
+
 	/**
 	 * Prints the status of the last received response and its headers.
 	 */
 	public void debugPrint() {
-		if (status == null) {
+		Response last = lastResponse;
+		if (last == null) {
 			System.out.println();
 			System.out.println("-- DEBUG OUTPUT: NO REQUEST MADE YET --");
 			System.out.println();
@@ -560,9 +2251,10 @@ public abstract class Connection {
 
 		System.out.println();
 		System.out.println("-- START DEBUG OUTPUT --");
-		System.out.println("Status of last received response: " + status);
+		System.out.println("Status of last received response: "
+				+ last.getStatus());
 		System.out.println("Headers: ");
-		for (Entry<String, String> entry : responseHeaders.entrySet()) {
+		for (Entry<String, String> entry : last.getHeaders().entrySet()) {
 			System.out.println(" " + entry.getKey() + ": " + entry.getValue());
 		}
 		System.out.println("-- END DEBUG OUTPUT --");
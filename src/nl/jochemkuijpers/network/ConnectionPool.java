@@ -0,0 +1,183 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps HTTP/1.1 keep-alive sockets to a single host and port open between
+ * requests.
+ * 
+ * The pool can limit the total number of sockets (idle and in use), and closes
+ * sockets that have been idle for longer than the idle timeout. A
+ * {@link Connection} creates its pool without a limit, so a request never
+ * waits for a socket unless a limit is set. Idle sockets are handed out most
+ * recently used first, as those are the least likely to have been closed by
+ * the server.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class ConnectionPool {
+	private final Deque<PooledSocket> idle;
+
+	private int leased;
+	private int maxConnections;
+	private long idleTimeoutNanos;
+	private boolean keepAlive;
+
+	/**
+	 * Creates an empty pool.
+	 * 
+	 * @param maxConnections
+	 *            the maximum number of sockets
+	 * @param idleTimeout
+	 *            the maximum idle time of a socket in milliseconds
+	 */
+	ConnectionPool(int maxConnections, int idleTimeout) {
+		this.idle = new ArrayDeque<PooledSocket>();
+		this.leased = 0;
+		this.maxConnections = maxConnections;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		this.keepAlive = true;
+	}
+
+	/**
+	 * Leases a socket from the pool. If an idle socket is available, it is
+	 * returned. Otherwise, if the connection limit allows it, null is returned
+	 * and the caller is expected to open a new socket. Either way, the lease
+	 * must be ended with {@link #release(PooledSocket, boolean)}.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait for a socket in milliseconds
+	 * @return an idle socket, or null if a new socket may be opened
+	 * @throws IOException
+	 *             if no socket became available within the timeout
+	 */
+	synchronized PooledSocket lease(int timeout) throws IOException {
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		while (true) {
+			evictExpired();
+
+			if (!idle.isEmpty()) {
+				leased++;
+				return idle.pollFirst();
+			}
+
+			if (leased < maxConnections) {
+				leased++;
+				return null;
+			}
+
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new SocketTimeoutException(
+						"Timed out waiting for a pooled connection");
+			}
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(
+						"Interrupted while waiting for a pooled connection", e);
+			}
+		}
+	}
+
+	/**
+	 * Ends a lease. The socket is kept for reuse if it is reusable and keep
+	 * alive is enabled, otherwise it is closed.
+	 * 
+	 * @param socket
+	 *            the leased socket, or null if no socket could be opened
+	 * @param reusable
+	 *            true if the socket is in a state where it can serve another
+	 *            request
+	 */
+	synchronized void release(PooledSocket socket, boolean reusable) {
+		leased--;
+
+		if (socket != null) {
+			if (reusable && keepAlive && !socket.getSocket().isClosed()) {
+				socket.markIdle();
+				idle.offerFirst(socket);
+			} else {
+				socket.close();
+			}
+		}
+
+		evictExpired();
+		notifyAll();
+	}
+
+	/**
+	 * Closes all idle sockets. Sockets in use are closed when released.
+	 */
+	synchronized void closeIdle() {
+		for (PooledSocket socket : idle) {
+			socket.close();
+		}
+		idle.clear();
+		notifyAll();
+	}
+
+	/**
+	 * @param maxConnections
+	 *            the maximum number of sockets
+	 */
+	synchronized void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+		while (leased + idle.size() > maxConnections && !idle.isEmpty()) {
+			idle.pollLast().close();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @param idleTimeout
+	 *            the maximum idle time of a socket in milliseconds
+	 */
+	synchronized void setIdleTimeout(int idleTimeout) {
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		evictExpired();
+	}
+
+	/**
+	 * @param keepAlive
+	 *            true if sockets should be kept open between requests
+	 */
+	synchronized void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+		if (!keepAlive) {
+			closeIdle();
+		}
+	}
+
+	/**
+	 * @return true if sockets are kept open between requests
+	 */
+	synchronized boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Closes and removes idle sockets that have expired.
+	 */
+	private void evictExpired() {
+		long now = System.nanoTime();
+		Iterator<PooledSocket> it = idle.descendingIterator();
+		while (it.hasNext()) {
+			PooledSocket socket = it.next();
+			if (socket.isExpired(idleTimeoutNanos, now)) {
+				socket.close();
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package nl.jochemkuijpers.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * An {@link HttpCache} that stores each response in a file in a directory, so
+ * cached responses survive a restart. Usually placed behind a
+ * {@link MemoryCache}.
+ * 
+ * The cache is best effort: entries that cannot be written are not stored,
+ * and files that cannot be read are removed.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class DiskCache implements HttpCache {
+	private final static int MAGIC = 0x4e574332; // NWC2
+	private final static String SUFFIX = ".cache";
+
+	private final Path directory;
+
+	/**
+	 * @param directory
+	 *            the directory to store the responses in. It is created if it
+	 *            does not exist.
+	 * @throws IOException
+	 *             if the directory could not be created
+	 */
+	public DiskCache(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+	}
+
+	@Override
+	public CacheEntry get(String key) {
+		Path file = file(key);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || !in.readUTF().equals(key)) {
+				return null;
+			}
+			long expires = in.readLong();
+			String status = in.readUTF();
+			int count = in.readInt();
+			Headers headers = new Headers();
+			for (int i = 0; i < count; i++) {
+				headers.add(in.readUTF(), in.readUTF());
+			}
+			Map<String, String> varying = new LinkedHashMap<String, String>();
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String field = in.readUTF();
+				varying.put(field, in.readBoolean() ? in.readUTF() : null);
+			}
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			return new CacheEntry(new Response(status, headers, body), expires,
+					varying);
+		} catch (IOException | RuntimeException e) {
+			delete(file);
+			return null;
+		}
+	}
+
+	@Override
+	public void put(String key, CacheEntry entry) {
+		Path file = file(key);
+		Path temp = null;
+		try {
+			temp = Files.createTempFile(directory, null, ".tmp");
+			Response response = entry.getResponse();
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeUTF(key);
+				out.writeLong(entry.getExpires());
+				out.writeUTF(response.getStatus());
+				Headers headers = response.getFields();
+				out.writeInt(headers.fieldCount());
+				for (int i = 0; i < headers.fieldCount(); i++) {
+					out.writeUTF(headers.name(i));
+					out.writeUTF(headers.value(i));
+				}
+				Map<String, String> varying = entry.getVaryingHeaders();
+				out.writeInt(varying.size());
+				for (Entry<String, String> field : varying.entrySet()) {
+					out.writeUTF(field.getKey());
+					out.writeBoolean(field.getValue() != null);
+					if (field.getValue() != null) {
+						out.writeUTF(field.getValue());
+					}
+				}
+				out.writeInt(response.getBody().length);
+				out.write(response.getBody());
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			if (temp != null) {
+				delete(temp);
+			}
+			delete(file);
+		}
+	}
+
+	@Override
+	public void remove(String key) {
+		delete(file(key));
+	}
+
+	/**
+	 * Removes all stored responses.
+	 * 
+	 * @throws IOException
+	 *             if the directory could not be listed
+	 */
+	public void clear() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+				"*" + SUFFIX)) {
+			for (Path file : files) {
+				delete(file);
+			}
+		}
+	}
+
+	/**
+	 * @return the file of a key, named after the SHA-1 hash of the key
+	 */
+	private Path file(String key) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(
+					key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder(hash.length * 2
+					+ SUFFIX.length());
+			for (byte b : hash) {
+				name.append(Character.forDigit((b >> 4) & 0xf, 16));
+				name.append(Character.forDigit(b & 0xf, 16));
+			}
+			return directory.resolve(name.append(SUFFIX).toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	private static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			// nothing to do, the file is not used anymore
+		}
+	}
+}
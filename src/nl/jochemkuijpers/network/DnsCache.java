@@ -0,0 +1,130 @@
+package nl.jochemkuijpers.network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the addresses of host names, so a new socket does not have to wait
+ * for name resolution. Failed lookups are cached as well, for a shorter time,
+ * so an unknown host fails fast.
+ * 
+ * All connections share {@link #getDefault()} unless they are given their own
+ * cache.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class DnsCache {
+	private final static int DEFAULT_TTL = 60000;
+	private final static int DEFAULT_NEGATIVE_TTL = 10000;
+
+	private static DnsCache defaultCache;
+
+	private final ConcurrentMap<String, Entry> entries;
+	private final long ttlNanos;
+	private final long negativeTtlNanos;
+
+	/**
+	 * @param ttl
+	 *            the time in milliseconds that addresses are cached
+	 * @param negativeTtl
+	 *            the time in milliseconds that failed lookups are cached, or 0
+	 *            to not cache failed lookups
+	 */
+	public DnsCache(int ttl, int negativeTtl) {
+		if (ttl < 0 || negativeTtl < 0) {
+			throw new IllegalArgumentException("ttl cannot be negative");
+		}
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+		this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+	}
+
+	/**
+	 * @return the cache shared by all connections, which caches addresses for
+	 *         60 seconds and failed lookups for 10 seconds
+	 */
+	public static synchronized DnsCache getDefault() {
+		if (defaultCache == null) {
+			defaultCache = new DnsCache(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * Returns all addresses of a host, from the cache if possible.
+	 * 
+	 * @param host
+	 *            a host name or IP address literal
+	 * @return the addresses of the host, in the order of the resolver
+	 * @throws UnknownHostException
+	 *             if the host could not be resolved
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		long now = System.nanoTime();
+		Entry entry = entries.get(host);
+		if (entry == null || now - entry.expires > 0) {
+			entry = lookup(host, now);
+		}
+
+		if (entry.addresses == null) {
+			throw new UnknownHostException(entry.error);
+		}
+		return entry.addresses.clone();
+	}
+
+	/**
+	 * Removes a host from the cache, for example after connecting to all its
+	 * addresses failed.
+	 * 
+	 * @param host
+	 *            the host name
+	 */
+	public void invalidate(String host) {
+		entries.remove(host);
+	}
+
+	/**
+	 * Removes all hosts from the cache.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	private Entry lookup(String host, long now) throws UnknownHostException {
+		Entry entry;
+		try {
+			InetAddress[] addresses = InetAddress.getAllByName(host);
+			entry = new Entry(addresses, null, now + ttlNanos);
+			if (ttlNanos > 0) {
+				entries.put(host, entry);
+			}
+		} catch (UnknownHostException e) {
+			if (negativeTtlNanos == 0) {
+				throw e;
+			}
+			entry = new Entry(null, e.getMessage(), now + negativeTtlNanos);
+			entries.put(host, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * The addresses of a host, or the error of a failed lookup.
+	 */
+	private static class Entry {
+		private final InetAddress[] addresses;
+		private final String error;
+		private final long expires;
+
+		private Entry(InetAddress[] addresses, String error, long expires) {
+			this.addresses = addresses;
+			this.error = error;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread that drives any number of {@link AsyncExchange}s with a single
+ * Selector.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class EventLoop implements Runnable {
+	private final static int READ_BUFFER_SIZE = 65536;
+	private final static long TIMEOUT_CHECK_INTERVAL_MS = 100;
+
+	private final Selector selector;
+	private final Queue<AsyncExchange> pending;
+	private final ByteBuffer readBuffer;
+	private final Thread thread;
+
+	private volatile boolean running;
+
+	/**
+	 * Opens a selector and starts the event loop thread.
+	 * 
+	 * @param name
+	 *            the name of the thread
+	 * @throws IOException
+	 *             if the selector could not be opened
+	 */
+	EventLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.pending = new ConcurrentLinkedQueue<AsyncExchange>();
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		this.running = true;
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Hands an exchange to this event loop. Can be called from any thread.
+	 * 
+	 * @param exchange
+	 *            the exchange to start
+	 */
+	void submit(AsyncExchange exchange) {
+		if (!running) {
+			exchange.fail(new IOException("Engine closed"));
+			return;
+		}
+		pending.add(exchange);
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the event loop. Exchanges in progress fail.
+	 */
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		long lastCheck = System.nanoTime();
+
+		while (running) {
+			try {
+				selector.select(TIMEOUT_CHECK_INTERVAL_MS);
+			} catch (IOException e) {
+				break;
+			}
+
+			AsyncExchange exchange;
+			while ((exchange = pending.poll()) != null) {
+				exchange.start(selector, readBuffer);
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (key.isValid()) {
+					((AsyncExchange) key.attachment()).handle();
+				}
+			}
+
+			long now = System.nanoTime();
+			if (now - lastCheck > TimeUnit.MILLISECONDS
+					.toNanos(TIMEOUT_CHECK_INTERVAL_MS)) {
+				lastCheck = now;
+				// a timed out connection attempt may register the next one
+				for (SelectionKey key : new ArrayList<SelectionKey>(
+						selector.keys())) {
+					if (key.isValid()) {
+						((AsyncExchange) key.attachment()).checkTimeout(now);
+					}
+				}
+			}
+		}
+
+		IOException closed = new IOException("Engine closed");
+		AsyncExchange exchange;
+		while ((exchange = pending.poll()) != null) {
+			exchange.fail(closed);
+		}
+		for (SelectionKey key : selector.keys()) {
+			((AsyncExchange) key.attachment()).fail(closed);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// nothing to do, the event loop has stopped
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package nl.jochemkuijpers.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reads a response body of which the length is given by the Content-Length
+ * header.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class FixedLengthInputStream extends BodyInputStream {
+	private long remaining;
+
+	/**
+	 * @param in
+	 *            socket InputStream, positioned at the start of the body
+	 * @param length
+	 *            the length of the body in bytes
+	 */
+	FixedLengthInputStream(HttpInputStream in, long length) {
+		super(in);
+		this.remaining = length;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining == 0) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n < 0) {
+			throw new EOFException("Connection closed with " + remaining
+					+ " bytes of the response body remaining");
+		}
+		remaining -= n;
+		return n;
+	}
+
+	/**
+	 * Writes the rest of the body to a file. Bytes that were already buffered
+	 * are written first; the remainder is transferred from the socket channel
+	 * to the file by the channels themselves, without passing through the
+	 * heap. The channel is switched to non-blocking mode during the transfer,
+	 * so the timeout can be enforced.
+	 * 
+	 * @param file
+	 *            the file to write to
+	 * @param position
+	 *            the file position to start writing at
+	 * @param channel
+	 *            the channel of the socket that in reads from
+	 * @param timeout
+	 *            the maximum time to wait for data in milliseconds
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	long transferTo(FileChannel file, long position, SocketChannel channel,
+			int timeout) throws IOException {
+		long start = position;
+
+		byte[] buffered = new byte[(int) Math.min(in.buffered(), remaining)];
+		int n = buffered.length == 0 ? 0 : read(buffered, 0, buffered.length);
+		ByteBuffer head = ByteBuffer.wrap(buffered, 0, n);
+		while (head.hasRemaining()) {
+			position += file.write(head, position);
+		}
+		if (remaining == 0) {
+			return position - start;
+		}
+
+		channel.configureBlocking(false);
+		Selector selector = Selector.open();
+		try {
+			channel.register(selector, SelectionKey.OP_READ);
+			ByteBuffer probe = ByteBuffer.allocate(1);
+			while (remaining > 0) {
+				long transferred = file.transferFrom(channel, position,
+						remaining);
+				if (transferred > 0) {
+					position += transferred;
+					remaining -= transferred;
+					continue;
+				}
+
+				if (selector.select(timeout) == 0) {
+					throw new SocketTimeoutException("Read timed out");
+				}
+				selector.selectedKeys().clear();
+
+				// readable but nothing transferred may mean end of stream
+				probe.clear();
+				if (channel.read(probe) < 0) {
+					throw new EOFException("Connection closed with "
+							+ remaining
+							+ " bytes of the response body remaining");
+				}
+				probe.flip();
+				while (probe.hasRemaining()) {
+					position += file.write(probe, position);
+					remaining--;
+				}
+			}
+		} finally {
+			selector.close();
+			channel.configureBlocking(true);
+		}
+		return position - start;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	@Override
+	long getRemaining() {
+		return remaining;
+	}
+
+	@Override
+	boolean isComplete() {
+		return remaining == 0;
+	}
+}
@@ -0,0 +1,99 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * An application/x-www-form-urlencoded request body of form fields. The
+ * fields are encoded while the body is written, so the encoded body is never
+ * held in memory as a whole. Its length is computed up front.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class FormBody implements InlineBody {
+	private final static String CONTENT_TYPE = "application/x-www-form-urlencoded";
+	private final static int BUFFER_SIZE = 8192;
+
+	private final String[] names;
+	private final String[] values;
+	private final long length;
+
+	/**
+	 * @param fields
+	 *            a mapping from field name to field value. These should not be
+	 *            url-encoded.
+	 */
+	FormBody(Map<String, String> fields) {
+		this.names = new String[fields.size()];
+		this.values = new String[fields.size()];
+
+		long length = Math.max(0, fields.size() * 2 - 1); // '=' and '&'
+		int i = 0;
+		for (Entry<String, String> entry : fields.entrySet()) {
+			names[i] = entry.getKey();
+			values[i] = entry.getValue();
+			length += PercentEncoder.encodedLength(names[i])
+					+ PercentEncoder.encodedLength(values[i]);
+			i++;
+		}
+		this.length = length;
+	}
+
+	@Override
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public void writeTo(OutputStream out, WritableByteChannel channel)
+			throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int pos = 0;
+		for (int i = 0; i < names.length; i++) {
+			if (pos == buffer.length) {
+				out.write(buffer, 0, pos);
+				pos = 0;
+			}
+			if (i > 0) {
+				buffer[pos++] = '&';
+			}
+			pos = PercentEncoder.encode(names[i], buffer, pos, out);
+			if (pos == buffer.length) {
+				out.write(buffer, 0, pos);
+				pos = 0;
+			}
+			buffer[pos++] = '=';
+			pos = PercentEncoder.encode(values[i], buffer, pos, out);
+		}
+		out.write(buffer, 0, pos);
+		out.flush();
+	}
+
+	@Override
+	public int writeTo(byte[] dest, int pos) {
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				dest[pos++] = '&';
+			}
+			pos = PercentEncoder.encode(names[i], dest, pos);
+			dest[pos++] = '=';
+			pos = PercentEncoder.encode(values[i], dest, pos);
+		}
+		return pos;
+	}
+}
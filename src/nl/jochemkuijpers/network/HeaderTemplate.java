@@ -0,0 +1,287 @@
+package nl.jochemkuijpers.network;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The header fields that are the same for every request of a connection:
+ * User-Agent, Host and the custom headers, encoded once so requests can copy
+ * them without building strings. The head of a request is encoded into a
+ * single array, so it can be written to the socket at once.
+ * 
+ * Templates are immutable. Changing a custom header creates a new template.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class HeaderTemplate {
+	private final static byte[] HTTP_VERSION = ascii(" HTTP/1.1\r\n");
+	private final static byte[] CONTENT_TYPE = ascii("Content-Type: ");
+	private final static byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+	private final static byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+	private final static byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+	private final static byte[] ACCEPT_ENCODING = ascii("Accept-Encoding: gzip, deflate\r\n");
+
+	private final String useragent;
+	private final String host;
+	private final Map<String, String> custom;
+	private final byte[] encoded;
+
+	/**
+	 * @param useragent
+	 *            user agent
+	 * @param host
+	 *            destination host
+	 * @param custom
+	 *            the custom headers with lower case field names
+	 */
+	HeaderTemplate(String useragent, String host, Map<String, String> custom) {
+		this.useragent = useragent;
+		this.host = host;
+		this.custom = Collections
+				.unmodifiableMap(new LinkedHashMap<String, String>(custom));
+		this.encoded = encode();
+	}
+
+	/**
+	 * @return the custom headers
+	 */
+	Map<String, String> getCustom() {
+		return custom;
+	}
+
+	/**
+	 * @param field
+	 *            a lower case field name
+	 * @return true if the custom headers contain the field
+	 */
+	boolean contains(String field) {
+		return custom.containsKey(field);
+	}
+
+	/**
+	 * @param field
+	 *            a lower case field name
+	 * @param compress
+	 *            true if requests ask for compression
+	 * @return the value a request without a body sends for the field, or null
+	 *         if the field is not sent
+	 */
+	String get(String field, boolean compress) {
+		String value = custom.get(field);
+		if (value != null) {
+			return value;
+		} else if (field.equals("user-agent")) {
+			return useragent;
+		} else if (field.equals("host")) {
+			return host;
+		} else if (compress && field.equals("accept-encoding")) {
+			return "gzip, deflate";
+		}
+		return null;
+	}
+
+	/**
+	 * @return the encoded header lines, each ending with CRLF
+	 */
+	byte[] getEncoded() {
+		return encoded;
+	}
+
+	/**
+	 * @param field
+	 *            the lower case field name
+	 * @param value
+	 *            the field value
+	 * @return a template with the field added or replaced
+	 */
+	HeaderTemplate with(String field, String value) {
+		Map<String, String> headers = new LinkedHashMap<String, String>(custom);
+		headers.put(field, value);
+		return new HeaderTemplate(useragent, host, headers);
+	}
+
+	/**
+	 * @param fields
+	 *            fields with lower case names
+	 * @return a template with the fields added or replaced
+	 */
+	HeaderTemplate with(Map<String, String> fields) {
+		Map<String, String> headers = new LinkedHashMap<String, String>(custom);
+		headers.putAll(fields);
+		return new HeaderTemplate(useragent, host, headers);
+	}
+
+	/**
+	 * @param field
+	 *            the lower case field name
+	 * @return a template without the field
+	 */
+	HeaderTemplate without(String field) {
+		Map<String, String> headers = new LinkedHashMap<String, String>(custom);
+		headers.remove(field);
+		return new HeaderTemplate(useragent, host, headers);
+	}
+
+	/**
+	 * Encodes the head of a request, optionally followed by its body.
+	 * 
+	 * @param method
+	 *            request method
+	 * @param path
+	 *            a valid path without first slash. Should be properly
+	 *            url-encoded.
+	 * @param contentType
+	 *            the content type of the body, or null to send no Content-Type
+	 * @param contentLength
+	 *            the length of the body, or -1 to send the body chunked. A
+	 *            request without content type and with length 0 has no body,
+	 *            and is sent without Content-Length.
+	 * @param close
+	 *            true to add Connection: close, unless a Connection header was
+	 *            set
+	 * @param compress
+	 *            true to add Accept-Encoding: gzip, deflate, unless an
+	 *            Accept-Encoding header was set
+	 * @param body
+	 *            the body to append after the head, or null
+	 * @return the encoded request
+	 */
+	byte[] encodeHead(String method, String path, String contentType,
+			long contentLength, boolean close, boolean compress,
+			InlineBody body) {
+		byte[] pathBytes = isAscii(path) ? null : path
+				.getBytes(StandardCharsets.UTF_8);
+		byte[] typeBytes = contentType == null || isAscii(contentType) ? null
+				: contentType.getBytes(StandardCharsets.UTF_8);
+		close = close && !custom.containsKey("connection");
+		compress = compress && !custom.containsKey("accept-encoding");
+		boolean framed = contentType != null || contentLength != 0;
+
+		int length = method.length() + 2
+				+ (pathBytes == null ? path.length() : pathBytes.length)
+				+ HTTP_VERSION.length + encoded.length + 2;
+		if (contentType != null) {
+			length += CONTENT_TYPE.length
+					+ (typeBytes == null ? contentType.length()
+							: typeBytes.length) + 2;
+		}
+		if (framed) {
+			length += contentLength < 0 ? CHUNKED.length
+					: CONTENT_LENGTH.length + digits(contentLength) + 2;
+		}
+		if (close) {
+			length += CONNECTION_CLOSE.length;
+		}
+		if (compress) {
+			length += ACCEPT_ENCODING.length;
+		}
+		if (body != null) {
+			length += (int) body.getLength();
+		}
+
+		byte[] head = new byte[length];
+		int pos = putAscii(head, 0, method);
+		head[pos++] = ' ';
+		head[pos++] = '/';
+		pos = pathBytes == null ? putAscii(head, pos, path) : put(head, pos,
+				pathBytes);
+		pos = put(head, pos, HTTP_VERSION);
+		pos = put(head, pos, encoded);
+		if (contentType != null) {
+			pos = put(head, pos, CONTENT_TYPE);
+			pos = typeBytes == null ? putAscii(head, pos, contentType) : put(
+					head, pos, typeBytes);
+			head[pos++] = '\r';
+			head[pos++] = '\n';
+		}
+		if (framed) {
+			if (contentLength < 0) {
+				pos = put(head, pos, CHUNKED);
+			} else {
+				pos = put(head, pos, CONTENT_LENGTH);
+				pos = putNumber(head, pos, contentLength);
+				head[pos++] = '\r';
+				head[pos++] = '\n';
+			}
+		}
+		if (close) {
+			pos = put(head, pos, CONNECTION_CLOSE);
+		}
+		if (compress) {
+			pos = put(head, pos, ACCEPT_ENCODING);
+		}
+		head[pos++] = '\r';
+		head[pos++] = '\n';
+		if (body != null) {
+			body.writeTo(head, pos);
+		}
+		return head;
+	}
+
+	private byte[] encode() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("User-Agent: ").append(useragent).append("\r\n");
+		sb.append("Host: ").append(host).append("\r\n");
+		for (Entry<String, String> entry : custom.entrySet()) {
+			sb.append(entry.getKey());
+			sb.append(": ");
+			sb.append(entry.getValue());
+			sb.append("\r\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static boolean isAscii(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int put(byte[] dest, int pos, byte[] src) {
+		System.arraycopy(src, 0, dest, pos, src.length);
+		return pos + src.length;
+	}
+
+	/**
+	 * Copies an ASCII string into the array.
+	 */
+	private static int putAscii(byte[] dest, int pos, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			dest[pos++] = (byte) s.charAt(i);
+		}
+		return pos;
+	}
+
+	private static int putNumber(byte[] dest, int pos, long value) {
+		int end = pos + digits(value);
+		for (int i = end - 1; i >= pos; i--) {
+			dest[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return end;
+	}
+
+	/**
+	 * @return the number of decimal digits of a non-negative number
+	 */
+	private static int digits(long value) {
+		int digits = 1;
+		while (value >= 10) {
+			value /= 10;
+			digits++;
+		}
+		return digits;
+	}
+}
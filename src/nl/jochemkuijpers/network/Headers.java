@@ -0,0 +1,618 @@
+package nl.jochemkuijpers.network;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The header fields of a response. Field names are case-insensitive and a
+ * field may occur more than once, as Set-Cookie usually does.
+ * 
+ * The fields of a received response are stored as the raw bytes of their
+ * names and values in a single array. Names and values are only decoded into
+ * strings when they are accessed. Looking up a frequently used field, such as
+ * Content-Length, compares a small number instead of the name.
+ * 
+ * As a Map, the headers have one entry per field name, with the name in lower
+ * case. Multiple values of a field are joined with ", " as allowed by RFC 7230;
+ * use {@link #getAll(String)} to get them separately. Headers are not
+ * synchronized, but can be read by multiple threads once they are no longer
+ * modified.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class Headers extends AbstractMap<String, String> {
+	private final static int INITIAL_FIELDS = 16;
+	private final static int INITIAL_DATA = 512;
+
+	/** lower case names of frequently used fields */
+	final static String[] KNOWN_FIELDS = { "accept-ranges", "age",
+			"cache-control", "connection", "content-disposition",
+			"content-encoding", "content-language", "content-length",
+			"content-range", "content-type", "date", "etag", "expires",
+			"keep-alive", "last-modified", "link", "location", "server",
+			"set-cookie", "transfer-encoding", "vary", "via",
+			"www-authenticate" };
+
+	private final static int CONNECTION = knownIndex("connection");
+	private final static int CONTENT_LENGTH = knownIndex("content-length");
+	private final static int TRANSFER_ENCODING = knownIndex("transfer-encoding");
+
+	/** raw names and values of received fields */
+	private byte[] data;
+	private int dataLength;
+	/** start and end of the name and the value of each field in data */
+	private int[] offsets;
+	/** index in KNOWN_FIELDS of the name of each field, or -1 */
+	private byte[] known;
+	/** decoded names and values, or null if not decoded yet */
+	private String[] names;
+	private String[] values;
+	private int count;
+
+	private Set<Entry<String, String>> entrySet;
+
+	/**
+	 * Creates empty headers.
+	 */
+	public Headers() {
+		this.data = null;
+		this.dataLength = 0;
+		this.offsets = new int[INITIAL_FIELDS * 4];
+		this.known = new byte[INITIAL_FIELDS];
+		this.names = new String[INITIAL_FIELDS];
+		this.values = new String[INITIAL_FIELDS];
+		this.count = 0;
+	}
+
+	/**
+	 * Creates a copy of headers. Later changes to either do not affect the
+	 * other.
+	 * 
+	 * @param other
+	 *            the headers to copy
+	 */
+	Headers(Headers other) {
+		this.data = other.data == null ? null : Arrays.copyOf(other.data,
+				other.dataLength);
+		this.dataLength = other.dataLength;
+		this.offsets = other.offsets.clone();
+		this.known = other.known.clone();
+		this.names = other.names.clone();
+		this.values = other.values.clone();
+		this.count = other.count;
+	}
+
+	/**
+	 * Adds a field, keeping existing fields with the same name.
+	 * 
+	 * @param field
+	 *            the name of the field
+	 * @param value
+	 *            the value of the field
+	 */
+	public void add(String field, String value) {
+		if (field == null || value == null) {
+			throw new NullPointerException("field and value cannot be null");
+		}
+		int i = append(knownIndex(field));
+		names[i] = field.toLowerCase(Locale.ROOT);
+		values[i] = value;
+	}
+
+	/**
+	 * Adds a field of which the name and value are in a buffer. The name and
+	 * value are copied.
+	 * 
+	 * @param buffer
+	 *            the buffer containing the field
+	 * @param nameStart
+	 *            the start of the name
+	 * @param nameEnd
+	 *            the end of the name (exclusive)
+	 * @param valueStart
+	 *            the start of the value
+	 * @param valueEnd
+	 *            the end of the value (exclusive)
+	 * @param knownIndex
+	 *            the index of the name in {@link #KNOWN_FIELDS}, or -1
+	 */
+	void add(byte[] buffer, int nameStart, int nameEnd, int valueStart,
+			int valueEnd, int knownIndex) {
+		int nameLength = knownIndex < 0 ? nameEnd - nameStart : 0;
+		int valueLength = valueEnd - valueStart;
+		ensureData(nameLength + valueLength);
+
+		int i = append(knownIndex);
+		int pos = i * 4;
+		offsets[pos] = dataLength;
+		System.arraycopy(buffer, nameStart, data, dataLength, nameLength);
+		dataLength += nameLength;
+		offsets[pos + 1] = dataLength;
+		offsets[pos + 2] = dataLength;
+		System.arraycopy(buffer, valueStart, data, dataLength, valueLength);
+		dataLength += valueLength;
+		offsets[pos + 3] = dataLength;
+	}
+
+	/**
+	 * Adds all fields of other headers, keeping existing fields with the same
+	 * names.
+	 * 
+	 * @param other
+	 *            the headers to add
+	 */
+	void addAll(Headers other) {
+		for (int i = 0; i < other.fieldCount(); i++) {
+			int k = append(other.known[i]);
+			names[k] = other.name(i);
+			values[k] = other.value(i);
+		}
+	}
+
+	/**
+	 * @param field
+	 *            the name of the field
+	 * @return the value of the first field with the name, or null if there is
+	 *         none
+	 */
+	public String getFirst(String field) {
+		int i = indexOf(field, 0);
+		return i < 0 ? null : value(i);
+	}
+
+	/**
+	 * @param field
+	 *            the name of the field
+	 * @return the values of all fields with the name, in the order they were
+	 *         received
+	 */
+	public List<String> getAll(String field) {
+		int i = indexOf(field, 0);
+		if (i < 0) {
+			return Collections.emptyList();
+		}
+		int next = indexOf(field, i + 1);
+		if (next < 0) {
+			return Collections.singletonList(value(i));
+		}
+
+		List<String> all = new ArrayList<String>();
+		all.add(value(i));
+		for (i = next; i >= 0; i = indexOf(field, i + 1)) {
+			all.add(value(i));
+		}
+		return Collections.unmodifiableList(all);
+	}
+
+	/**
+	 * @return the value of the Content-Length field, or -1 if there is none or
+	 *         it is not a valid length
+	 */
+	public long getContentLength() {
+		int i = indexOf(CONTENT_LENGTH, 0);
+		if (i < 0) {
+			return -1;
+		}
+
+		int length = valueLength(i);
+		int start = 0;
+		while (start < length && isWhitespace(valueByte(i, start))) {
+			start++;
+		}
+		while (length > start && isWhitespace(valueByte(i, length - 1))) {
+			length--;
+		}
+		if (start == length || length - start > 18) {
+			return -1;
+		}
+
+		long value = 0;
+		for (int k = start; k < length; k++) {
+			int digit = valueByte(i, k) - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * @return true if the body is chunked, which is the case if the last
+	 *         Transfer-Encoding ends with chunked
+	 */
+	boolean isChunked() {
+		int last = -1;
+		for (int i = indexOf(TRANSFER_ENCODING, 0); i >= 0; i = indexOf(
+				TRANSFER_ENCODING, i + 1)) {
+			last = i;
+		}
+		if (last < 0) {
+			return false;
+		}
+
+		int length = valueLength(last);
+		while (length > 0 && isWhitespace(valueByte(last, length - 1))) {
+			length--;
+		}
+		return regionMatches(last, length - 7, "chunked");
+	}
+
+	/**
+	 * @return true if a Connection field contains close
+	 */
+	boolean isClose() {
+		for (int i = indexOf(CONNECTION, 0); i >= 0; i = indexOf(CONNECTION,
+				i + 1)) {
+			for (int k = 0; k + 5 <= valueLength(i); k++) {
+				if (regionMatches(i, k, "close")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of fields, counting each occurrence of a name
+	 */
+	int fieldCount() {
+		return count;
+	}
+
+	/**
+	 * @param i
+	 *            the index of a field
+	 * @return the lower case name of the field
+	 */
+	String name(int i) {
+		String name = names[i];
+		if (name == null) {
+			if (known[i] >= 0) {
+				name = KNOWN_FIELDS[known[i]];
+			} else {
+				int start = offsets[i * 4];
+				char[] chars = new char[offsets[i * 4 + 1] - start];
+				for (int k = 0; k < chars.length; k++) {
+					chars[k] = (char) toLowerCase(data[start + k]);
+				}
+				name = new String(chars);
+			}
+			names[i] = name;
+		}
+		return name;
+	}
+
+	/**
+	 * @param i
+	 *            the index of a field
+	 * @return the value of the field
+	 */
+	String value(int i) {
+		String value = values[i];
+		if (value == null) {
+			int start = offsets[i * 4 + 2];
+			value = new String(data, start, offsets[i * 4 + 3] - start,
+					StandardCharsets.UTF_8);
+			values[i] = value;
+		}
+		return value;
+	}
+
+	@Override
+	public String get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		String field = (String) key;
+		int i = indexOf(field, 0);
+		if (i < 0) {
+			return null;
+		}
+		int next = indexOf(field, i + 1);
+		if (next < 0) {
+			return value(i);
+		}
+
+		StringBuilder joined = new StringBuilder(value(i));
+		for (i = next; i >= 0; i = indexOf(field, i + 1)) {
+			joined.append(", ").append(value(i));
+		}
+		return joined.toString();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && indexOf((String) key, 0) >= 0;
+	}
+
+	/**
+	 * Replaces all fields with the name by a single field.
+	 */
+	@Override
+	public String put(String field, String value) {
+		String previous = remove(field);
+		add(field, value);
+		return previous;
+	}
+
+	/**
+	 * Removes all fields with the name.
+	 */
+	@Override
+	public String remove(Object key) {
+		String previous = get(key);
+		if (previous == null) {
+			return null;
+		}
+
+		String field = (String) key;
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			if (!matches(i, field, knownIndex(field))) {
+				move(i, kept++);
+			}
+		}
+		clearFrom(kept);
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		clearFrom(0);
+		dataLength = 0;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			if (isFirst(i)) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new EntrySet();
+		}
+		return entrySet;
+	}
+
+	/**
+	 * @return the index of the name in {@link #KNOWN_FIELDS}, ignoring case,
+	 *         or -1
+	 */
+	static int knownIndex(String field) {
+		for (int k = 0; k < KNOWN_FIELDS.length; k++) {
+			if (KNOWN_FIELDS[k].equalsIgnoreCase(field)) {
+				return k;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the index of the first field at or after from with the name, or
+	 *         -1
+	 */
+	private int indexOf(String field, int from) {
+		return field == null ? -1 : indexOf(field, knownIndex(field), from);
+	}
+
+	private int indexOf(int knownIndex, int from) {
+		for (int i = from; i < count; i++) {
+			if (known[i] == knownIndex) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int indexOf(String field, int knownIndex, int from) {
+		if (knownIndex >= 0) {
+			return indexOf(knownIndex, from);
+		}
+		for (int i = from; i < count; i++) {
+			if (matches(i, field, knownIndex)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the name of field i equals field, ignoring case
+	 */
+	private boolean matches(int i, String field, int knownIndex) {
+		if (known[i] != knownIndex) {
+			return false;
+		}
+		if (knownIndex >= 0) {
+			return true;
+		}
+		if (names[i] != null) {
+			return names[i].equalsIgnoreCase(field);
+		}
+
+		int start = offsets[i * 4];
+		if (offsets[i * 4 + 1] - start != field.length()) {
+			return false;
+		}
+		for (int k = 0; k < field.length(); k++) {
+			if (toLowerCase(data[start + k]) != Character.toLowerCase(field
+					.charAt(k))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if no field before field i has the same name
+	 */
+	private boolean isFirst(int i) {
+		if (known[i] >= 0) {
+			return indexOf(known[i], 0) == i;
+		}
+		return indexOf(name(i), -1, 0) == i;
+	}
+
+	/**
+	 * @return the length of the value of field i
+	 */
+	private int valueLength(int i) {
+		if (values[i] != null && offsets[i * 4 + 2] < 0) {
+			return values[i].length();
+		}
+		return offsets[i * 4 + 3] - offsets[i * 4 + 2];
+	}
+
+	/**
+	 * @return the lower case character at position k of the value of field i
+	 */
+	private int valueByte(int i, int k) {
+		if (values[i] != null && offsets[i * 4 + 2] < 0) {
+			return Character.toLowerCase(values[i].charAt(k));
+		}
+		return toLowerCase(data[offsets[i * 4 + 2] + k]);
+	}
+
+	/**
+	 * @return true if the value of field i contains the lower case token at
+	 *         position k, ignoring case
+	 */
+	private boolean regionMatches(int i, int k, String token) {
+		if (k < 0 || k + token.length() > valueLength(i)) {
+			return false;
+		}
+		for (int t = 0; t < token.length(); t++) {
+			if (valueByte(i, k + t) != token.charAt(t)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Appends an empty field and returns its index.
+	 */
+	private int append(int knownIndex) {
+		if (count == known.length) {
+			int capacity = count * 2;
+			offsets = Arrays.copyOf(offsets, capacity * 4);
+			known = Arrays.copyOf(known, capacity);
+			names = Arrays.copyOf(names, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		int i = count++;
+		Arrays.fill(offsets, i * 4, i * 4 + 4, -1);
+		known[i] = (byte) knownIndex;
+		names[i] = null;
+		values[i] = null;
+		return i;
+	}
+
+	private void ensureData(int length) {
+		if (data == null) {
+			data = new byte[Math.max(INITIAL_DATA, length)];
+		} else if (dataLength + length > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength
+					+ length));
+		}
+	}
+
+	private void move(int from, int to) {
+		if (from != to) {
+			System.arraycopy(offsets, from * 4, offsets, to * 4, 4);
+			known[to] = known[from];
+			names[to] = names[from];
+			values[to] = values[from];
+		}
+	}
+
+	private void clearFrom(int from) {
+		Arrays.fill(names, from, count, null);
+		Arrays.fill(values, from, count, null);
+		count = from;
+	}
+
+	private static int toLowerCase(byte b) {
+		if (b >= 'A' && b <= 'Z') {
+			return b + ('a' - 'A');
+		}
+		return b & 0xff;
+	}
+
+	private static boolean isWhitespace(int b) {
+		return b == ' ' || b == '\t';
+	}
+
+	/**
+	 * The entries of the distinct field names.
+	 */
+	private class EntrySet extends AbstractSet<Entry<String, String>> {
+		@Override
+		public Iterator<Entry<String, String>> iterator() {
+			return new Iterator<Entry<String, String>>() {
+				private int next = advance(0);
+				private int current;
+				private String last;
+
+				@Override
+				public boolean hasNext() {
+					return next < count;
+				}
+
+				@Override
+				public Entry<String, String> next() {
+					if (next >= count) {
+						throw new NoSuchElementException();
+					}
+					current = next;
+					last = name(next);
+					next = advance(next + 1);
+					return new SimpleImmutableEntry<String, String>(last,
+							get(last));
+				}
+
+				@Override
+				public void remove() {
+					if (last == null) {
+						throw new IllegalStateException();
+					}
+					// no field before current has the removed name
+					Headers.this.remove(last);
+					next = advance(current);
+					last = null;
+				}
+
+				private int advance(int i) {
+					while (i < count && !isFirst(i)) {
+						i++;
+					}
+					return i;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return Headers.this.size();
+		}
+	}
+}
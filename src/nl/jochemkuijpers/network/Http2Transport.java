@@ -0,0 +1,344 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Subscription;
+import java.util.function.Function;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Sends requests over HTTP/2, negotiated with ALPN. Concurrent requests are
+ * multiplexed as streams over a single TLS connection per host, with HPACK
+ * header compression and flow control. If the server does not offer HTTP/2,
+ * requests fall back to HTTP/1.1.
+ * 
+ * The protocol itself is implemented by the java.net.http client of the JDK;
+ * this class maps requests and responses of this package onto it.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class Http2Transport {
+	private final HttpClient client;
+	private final String base;
+
+	/**
+	 * @param context
+	 *            the SSLContext to create connections with
+	 * @param parameters
+	 *            the SSL parameters for new connections
+	 * @param host
+	 *            destination host
+	 * @param port
+	 *            destination port
+	 * @param connectionTimeout
+	 *            the maximum time to connect in milliseconds
+	 */
+	Http2Transport(SSLContext context, SSLParameters parameters, String host,
+			int port, int connectionTimeout) {
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2).sslContext(context)
+				.sslParameters(parameters)
+				.connectTimeout(Duration.ofMillis(connectionTimeout))
+				.followRedirects(HttpClient.Redirect.NEVER).build();
+		this.base = "https://" + host + ":" + port + "/";
+	}
+
+	/**
+	 * Sends a request and waits for the response headers. The body is read
+	 * from the returned stream, and closing the stream before its end cancels
+	 * the rest of the body.
+	 * 
+	 * @see #sendAsync(String, String, String, Map, RequestBody, int, long)
+	 * @return the response, of which the body is a stream
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	HttpResponse<InputStream> send(String method, String path, String useragent,
+			Map<String, String> customHeaders, RequestBody body,
+			int responseTimeout) throws IOException {
+		HttpRequest request = buildRequest(method, path, useragent,
+				customHeaders, body, responseTimeout);
+		try {
+			return client.send(request, BodyHandlers.ofInputStream());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted during request");
+		}
+	}
+
+	/**
+	 * Sends a request without blocking.
+	 * 
+	 * @param method
+	 *            request method
+	 * @param path
+	 *            a valid path without first slash. Should be properly
+	 *            url-encoded.
+	 * @param useragent
+	 *            user agent
+	 * @param customHeaders
+	 *            custom headers to send. Headers that HTTP/2 manages itself,
+	 *            such as Connection, are skipped.
+	 * @param body
+	 *            request body, or null if there is no body
+	 * @param responseTimeout
+	 *            the maximum time to wait for the response headers in
+	 *            milliseconds
+	 * @param maxBodySize
+	 *            the maximum body size in bytes, or -1 for no maximum
+	 * @return a future that completes with the response
+	 */
+	CompletableFuture<Response> sendAsync(String method, String path,
+			String useragent, Map<String, String> customHeaders,
+			RequestBody body, int responseTimeout, final long maxBodySize) {
+		try {
+			HttpRequest request = buildRequest(method, path, useragent,
+					customHeaders, body, responseTimeout);
+			BodyHandler<byte[]> handler = BodyHandlers.ofByteArray();
+			if (maxBodySize >= 0) {
+				handler = new BodyHandler<byte[]>() {
+					@Override
+					public BodySubscriber<byte[]> apply(ResponseInfo info) {
+						return new LimitedBody(info.headers()
+								.firstValueAsLong("content-length").orElse(-1),
+								maxBodySize);
+					}
+				};
+			}
+			return client.sendAsync(request, handler)
+					.thenApply(new Function<HttpResponse<byte[]>, Response>() {
+						@Override
+						public Response apply(HttpResponse<byte[]> response) {
+							return toResponse(response);
+						}
+					});
+		} catch (IOException | RuntimeException e) {
+			CompletableFuture<Response> failed = new CompletableFuture<Response>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	private HttpRequest buildRequest(String method, String path,
+			String useragent, Map<String, String> customHeaders,
+			RequestBody body, int responseTimeout) throws IOException {
+		HttpRequest.Builder builder;
+		try {
+			builder = HttpRequest.newBuilder(URI.create(base + path));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid path: " + path, e);
+		}
+		builder.timeout(Duration.ofMillis(responseTimeout));
+		header(builder, "User-Agent", useragent);
+
+		for (Entry<String, String> entry : customHeaders.entrySet()) {
+			if (!isManagedHeader(entry.getKey())) {
+				header(builder, entry.getKey(), entry.getValue());
+			}
+		}
+
+		if (body == null) {
+			builder.method(method, BodyPublishers.noBody());
+		} else {
+			if (body.getContentType() != null) {
+				builder.header("Content-Type", body.getContentType());
+			}
+			builder.method(method, publisher(body, responseTimeout));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Adds a header to a request. A header that the HTTP client restricts, or
+	 * of which the name or value is not valid, fails the request like any
+	 * other error instead of with an unchecked exception.
+	 * 
+	 * @throws IOException
+	 *             if the header cannot be set
+	 */
+	private static void header(HttpRequest.Builder builder, String field,
+			String value) throws IOException {
+		try {
+			builder.header(field, value);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Header cannot be sent over HTTP/2: "
+					+ field, e);
+		}
+	}
+
+	/**
+	 * @param timeout
+	 *            the maximum time the client may leave a streamed body
+	 *            unread, in milliseconds
+	 * @return a publisher of the request body. Bodies that are not held in
+	 *         memory are written on demand by a {@link RequestBodyPublisher},
+	 *         except for published bodies, which are passed on as they are.
+	 */
+	private static BodyPublisher publisher(RequestBody body, int timeout)
+			throws IOException {
+		if (body instanceof ByteArrayBody) {
+			return BodyPublishers.ofByteArray(((ByteArrayBody) body)
+					.getContent());
+		}
+		if (body instanceof PublisherBody) {
+			return BodyPublishers.fromPublisher(((PublisherBody) body)
+					.getPublisher());
+		}
+
+		RequestBodyPublisher publisher = new RequestBodyPublisher(body,
+				timeout);
+		long length = body.getLength();
+		if (length <= 0) {
+			return BodyPublishers.fromPublisher(publisher);
+		}
+		return BodyPublishers.fromPublisher(publisher, length);
+	}
+
+	/**
+	 * @return true for headers that the HTTP/2 client sets itself and that
+	 *         cannot be set on a request
+	 */
+	private static boolean isManagedHeader(String field) {
+		return field.equals("connection") || field.equals("content-length")
+				|| field.equals("expect") || field.equals("host")
+				|| field.equals("upgrade") || field.equals("keep-alive")
+				|| field.equals("transfer-encoding");
+	}
+
+	private static Response toResponse(HttpResponse<byte[]> response) {
+		return new Response(statusLine(response), headers(response),
+				response.body());
+	}
+
+	/**
+	 * @param response
+	 *            a response received by the HTTP client
+	 * @return the status line of the response, without a reason phrase
+	 */
+	static String statusLine(HttpResponse<?> response) {
+		String version = response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2"
+				: "HTTP/1.1";
+		return version + " " + response.statusCode();
+	}
+
+	/**
+	 * @param response
+	 *            a response received by the HTTP client
+	 * @return the header fields of the response, without pseudo-headers
+	 */
+	static Headers headers(HttpResponse<?> response) {
+		HttpHeaders fields = response.headers();
+		Headers headers = new Headers();
+		for (Entry<String, List<String>> entry : fields.map().entrySet()) {
+			if (!entry.getKey().startsWith(":")) {
+				for (String value : entry.getValue()) {
+					headers.add(entry.getKey(), value);
+				}
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * Collects a response body into an array, and fails it with a
+	 * {@link BodyTooLargeException} as soon as it is known to exceed the
+	 * maximum body size.
+	 */
+	private static class LimitedBody implements BodySubscriber<byte[]> {
+		private final BodySubscriber<byte[]> content;
+		private final long length;
+		private final long maxBodySize;
+
+		private Subscription subscription;
+		private long received;
+		private boolean failed;
+
+		/**
+		 * @param length
+		 *            the announced length of the body, or -1 if it is not
+		 *            known
+		 * @param maxBodySize
+		 *            the maximum body size in bytes
+		 */
+		private LimitedBody(long length, long maxBodySize) {
+			this.content = BodySubscribers.ofByteArray();
+			this.length = length;
+			this.maxBodySize = maxBodySize;
+		}
+
+		@Override
+		public CompletionStage<byte[]> getBody() {
+			return content.getBody();
+		}
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+			if (length > maxBodySize) {
+				tooLarge();
+			} else {
+				content.onSubscribe(subscription);
+			}
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> item) {
+			if (failed) {
+				return;
+			}
+			for (ByteBuffer buffer : item) {
+				received += buffer.remaining();
+			}
+			if (received > maxBodySize) {
+				tooLarge();
+			} else {
+				content.onNext(item);
+			}
+		}
+
+		@Override
+		public void onError(Throwable error) {
+			if (!failed) {
+				content.onError(error);
+			}
+		}
+
+		@Override
+		public void onComplete() {
+			if (!failed) {
+				content.onComplete();
+			}
+		}
+
+		private void tooLarge() {
+			failed = true;
+			subscription.cancel();
+			content.onError(new BodyTooLargeException("Response body exceeds "
+					+ maxBodySize + " bytes", maxBodySize));
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package nl.jochemkuijpers.network;
+
+/**
+ * Stores responses to GET requests so they can be served again without
+ * downloading them. Set a cache on a connection with
+ * {@link Connection#setCache(HttpCache)}; the connection decides which
+ * responses are stored and when they must be revalidated.
+ * 
+ * Implementations must be thread-safe if the connection is shared between
+ * threads.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ * @see MemoryCache
+ * @see DiskCache
+ */
+public interface HttpCache {
+
+	/**
+	 * @param key
+	 *            the key of the request
+	 * @return the stored entry, or null if there is none
+	 */
+	public CacheEntry get(String key);
+
+	/**
+	 * Stores an entry, replacing any previous entry for the key.
+	 * 
+	 * @param key
+	 *            the key of the request
+	 * @param entry
+	 *            the entry to store
+	 */
+	public void put(String key, CacheEntry entry);
+
+	/**
+	 * Removes the entry for a key, if there is one.
+	 * 
+	 * @param key
+	 *            the key of the request
+	 */
+	public void remove(String key);
+}
@@ -2,6 +2,7 @@ package nl.jochemkuijpers.network;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 /**
  * Sends GET, POST and POST multipart requests over a plaintext HTTP connection.
@@ -27,9 +28,25 @@ public class HttpConnection extends Connection {
 		super(host, DESTINATION_PORT);
 	}
 
+	/**
+	 * Set up a connection with a specified destination host and port.
+	 * 
+	 * @param host
+	 *            destination host
+	 * @param port
+	 *            destination port
+	 */
+	public HttpConnection(String host, int port) {
+		super(host, port);
+	}
+
+	/**
+	 * Creates a socket backed by a SocketChannel, so files can be sent with
+	 * zero-copy transfers.
+	 */
 	@Override
 	protected Socket createSocket() throws IOException {
-		return new Socket();
+		return SocketChannel.open().socket();
 	}
 
 }
@@ -0,0 +1,360 @@
+package nl.jochemkuijpers.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A buffered socket InputStream that parses the status line, header fields and
+ * chunk sizes of HTTP/1.1 responses directly from its buffer. Bytes following
+ * the response head remain in the buffer and are handed to the body reader.
+ * 
+ * Lines are parsed in place, without copying them or splitting them into
+ * intermediate strings. Header fields are handed to {@link Headers} as byte
+ * ranges, and frequently used field names are recognized while parsing.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class HttpInputStream extends InputStream {
+	private final static int BUFFER_SIZE = 8192;
+	private final static int MAX_LINE_LENGTH = 65536;
+
+	private final InputStream in;
+	private final int maxLineLength;
+
+	private byte[] buffer;
+	private int pos;
+	private int limit;
+
+	/** start and end (excluding line ending) of the last line read */
+	private int lineStart;
+	private int lineEnd;
+
+	/** total number of bytes read from the socket */
+	private long received;
+
+	/**
+	 * @param in
+	 *            socket InputStream
+	 */
+	HttpInputStream(InputStream in) {
+		this(in, BUFFER_SIZE);
+	}
+
+	/**
+	 * @param in
+	 *            socket InputStream
+	 * @param bufferSize
+	 *            the initial size of the buffer. The buffer grows for longer
+	 *            lines, up to 64KB or the initial size if that is larger.
+	 */
+	HttpInputStream(InputStream in, int bufferSize) {
+		this.in = in;
+		this.maxLineLength = Math.max(MAX_LINE_LENGTH, bufferSize);
+		this.buffer = new byte[bufferSize];
+		this.pos = 0;
+		this.limit = 0;
+	}
+
+	/**
+	 * Reads the status line of a response. A single empty line preceding the
+	 * status line is ignored.
+	 * 
+	 * @return the status line, or null if the connection was closed before a
+	 *         status line was received
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	String readStatusLine() throws IOException {
+		if (!readLine()) {
+			return null;
+		}
+		if (lineStart == lineEnd && !readLine()) {
+			return null;
+		}
+		return new String(buffer, lineStart, lineEnd - lineStart,
+				StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads header fields up to and including the empty line that ends them.
+	 * Values are trimmed. Lines without a colon are ignored.
+	 * 
+	 * @param headers
+	 *            the headers to add the header fields to
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	void readHeaders(Headers headers) throws IOException {
+		while (true) {
+			if (!readLine()) {
+				throw new EOFException(
+						"Connection closed before the end of the header fields");
+			}
+			if (lineStart == lineEnd) {
+				return;
+			}
+
+			int colon = indexOf(':', lineStart, lineEnd);
+			if (colon < 0) {
+				continue; // illegal header?
+			}
+
+			int valueStart = colon + 1;
+			int valueEnd = lineEnd;
+			while (valueStart < valueEnd && isWhitespace(buffer[valueStart])) {
+				valueStart++;
+			}
+			while (valueEnd > valueStart && isWhitespace(buffer[valueEnd - 1])) {
+				valueEnd--;
+			}
+
+			int nameEnd = colon;
+			while (nameEnd > lineStart && isWhitespace(buffer[nameEnd - 1])) {
+				nameEnd--;
+			}
+			headers.add(buffer, lineStart, nameEnd, valueStart, valueEnd,
+					knownField(lineStart, nameEnd));
+		}
+	}
+
+	/**
+	 * Reads a chunk size line, ignoring any chunk extensions.
+	 * 
+	 * @return the size of the next chunk
+	 * @throws IOException
+	 *             if an error occurred or the line is not a valid chunk size
+	 */
+	long readChunkSize() throws IOException {
+		if (!readLine()) {
+			throw new EOFException("Connection closed before the last chunk");
+		}
+
+		long size = 0;
+		int digits = 0;
+		for (int i = lineStart; i < lineEnd; i++) {
+			int digit = Character.digit(buffer[i], 16);
+			if (digit < 0) {
+				if (buffer[i] == ';' || isWhitespace(buffer[i])) {
+					break;
+				}
+				throw new IOException("Invalid chunk size");
+			}
+			if (++digits > 15) {
+				throw new IOException("Chunk size too large");
+			}
+			size = (size << 4) | digit;
+		}
+		if (digits == 0) {
+			throw new IOException("Invalid chunk size");
+		}
+		return size;
+	}
+
+	/**
+	 * Reads the line ending that follows the data of a chunk.
+	 * 
+	 * @throws IOException
+	 *             if an error occurred or the line is not empty
+	 */
+	void readChunkEnd() throws IOException {
+		if (!readLine() || lineStart != lineEnd) {
+			throw new IOException("Missing CRLF after chunk data");
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos == limit && fill() < 0) {
+			return -1;
+		}
+		return buffer[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		if (pos == limit) {
+			if (len >= buffer.length) {
+				// large reads bypass the buffer
+				int n = in.read(b, off, len);
+				if (n > 0) {
+					received += n;
+				}
+				return n;
+			}
+			if (fill() < 0) {
+				return -1;
+			}
+		}
+
+		int n = Math.min(len, limit - pos);
+		System.arraycopy(buffer, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	/**
+	 * @return the total number of bytes read from the socket so far,
+	 *         including bytes that are still buffered
+	 */
+	long getBytesReceived() {
+		return received;
+	}
+
+	/**
+	 * @return the number of bytes in the buffer that have not been read yet
+	 */
+	int buffered() {
+		return limit - pos;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (limit - pos) + in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Finds the next line ending with "\n" and sets lineStart and lineEnd to
+	 * the line excluding the line ending. A "\r" preceding the "\n" is not part
+	 * of the line.
+	 * 
+	 * @return false if the connection was closed before a line was read
+	 * @throws IOException
+	 *             if an error occurred or the line is too long
+	 */
+	private boolean readLine() throws IOException {
+		int scan = pos;
+		while (true) {
+			int newline = indexOf('\n', scan, limit);
+			if (newline >= 0) {
+				lineStart = pos;
+				lineEnd = newline;
+				if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+					lineEnd--;
+				}
+				pos = newline + 1;
+				return true;
+			}
+
+			scan = limit - pos;
+			compact();
+			if (limit == buffer.length) {
+				if (buffer.length >= maxLineLength) {
+					throw new IOException("Line exceeds " + maxLineLength
+							+ " bytes");
+				}
+				byte[] larger = new byte[Math.min(buffer.length * 2,
+						maxLineLength)];
+				System.arraycopy(buffer, 0, larger, 0, limit);
+				buffer = larger;
+			}
+
+			int n = in.read(buffer, limit, buffer.length - limit);
+			if (n < 0) {
+				if (limit == pos) {
+					return false;
+				}
+				// last line without line ending
+				lineStart = pos;
+				lineEnd = limit;
+				pos = limit;
+				return true;
+			}
+			limit += n;
+			received += n;
+		}
+	}
+
+	/**
+	 * Refills the buffer after it has been read completely.
+	 * 
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	private int fill() throws IOException {
+		pos = 0;
+		limit = 0;
+		int n = in.read(buffer, 0, buffer.length);
+		if (n > 0) {
+			limit = n;
+			received += n;
+		}
+		return n;
+	}
+
+	/**
+	 * Moves the unread bytes to the start of the buffer.
+	 */
+	private void compact() {
+		if (pos > 0) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+	}
+
+	/**
+	 * @return the index of the first occurrence of b in the buffer between
+	 *         start (inclusive) and end (exclusive), or -1
+	 */
+	private int indexOf(char b, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (buffer[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the index in {@link Headers#KNOWN_FIELDS} of the field name in
+	 *         the buffer between start and end, or -1 if it is not known
+	 */
+	private int knownField(int start, int end) {
+		int length = end - start;
+		for (int i = 0; i < Headers.KNOWN_FIELDS.length; i++) {
+			String known = Headers.KNOWN_FIELDS[i];
+			if (known.length() == length && equalsIgnoreCase(known, start)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the buffer at start matches the lower case ASCII string
+	 *         known, ignoring case
+	 */
+	private boolean equalsIgnoreCase(String known, int start) {
+		for (int i = 0; i < known.length(); i++) {
+			if (toLowerCase(buffer[start + i]) != known.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toLowerCase(byte b) {
+		if (b >= 'A' && b <= 'Z') {
+			return b + ('a' - 'A');
+		}
+		return b & 0xff;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+}
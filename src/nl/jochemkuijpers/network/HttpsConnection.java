@@ -2,12 +2,34 @@ package nl.jochemkuijpers.network;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 
 /**
  * Sends GET, POST and POST multipart requests over a secure HTTPS connection.
  * 
+ * TLS sockets are created from an SSLContext, which can be given to the
+ * constructor to control trust, key material and the session cache. All
+ * sockets of a connection are created for the same host and port, so sessions
+ * from earlier handshakes are resumed on new sockets and full handshakes only
+ * happen when the cached session has expired.
+ * 
+ * With {@link #setHttp2Enabled(boolean)}, complete and asynchronous requests
+ * are sent over HTTP/2 instead, negotiated with ALPN. All such requests share
+ * one connection and run concurrently as separate streams.
+ * 
  * Please refer to the LICENSE file for the license corresponding to this code.
  * 
  * @author Jochem Kuijpers
@@ -15,23 +37,280 @@ import javax.net.ssl.SSLSocketFactory;
 public class HttpsConnection extends Connection {
 	private final static int DESTINATION_PORT = 443;
 
+	private final SSLContext context;
+	private volatile String[] protocols;
+	private volatile String[] cipherSuites;
+
+	private final AtomicLong fullHandshakes;
+	private final AtomicLong resumedHandshakes;
+	private final AtomicLong handshakeNanos;
+
+	/**
+	 * Set up a connection with a specified destination host, user agent and
+	 * SSLContext.
+	 * 
+	 * @param host
+	 *            destination host
+	 * @param useragent
+	 *            user agent
+	 * @param context
+	 *            the SSLContext to create sockets with
+	 */
+	public HttpsConnection(String host, String useragent, SSLContext context) {
+		super(host, DESTINATION_PORT, useragent);
+		this.context = context;
+		this.fullHandshakes = new AtomicLong();
+		this.resumedHandshakes = new AtomicLong();
+		this.handshakeNanos = new AtomicLong();
+	}
+
+	/**
+	 * Set up a connection with a specified destination host and SSLContext.
+	 * 
+	 * @param host
+	 *            destination host
+	 * @param context
+	 *            the SSLContext to create sockets with
+	 */
+	public HttpsConnection(String host, SSLContext context) {
+		super(host, DESTINATION_PORT);
+		this.context = context;
+		this.fullHandshakes = new AtomicLong();
+		this.resumedHandshakes = new AtomicLong();
+		this.handshakeNanos = new AtomicLong();
+	}
+
+	/**
+	 * Set up a connection with a specified destination host, port and
+	 * SSLContext.
+	 * 
+	 * @param host
+	 *            destination host
+	 * @param port
+	 *            destination port
+	 * @param context
+	 *            the SSLContext to create sockets with
+	 */
+	public HttpsConnection(String host, int port, SSLContext context) {
+		super(host, port);
+		this.context = context;
+		this.fullHandshakes = new AtomicLong();
+		this.resumedHandshakes = new AtomicLong();
+		this.handshakeNanos = new AtomicLong();
+	}
+
 	/**
 	 * @see Connection#Connection(String,String)
 	 */
 	public HttpsConnection(String host, String useragent) {
-		super(host, DESTINATION_PORT, useragent);
+		this(host, useragent, defaultContext());
 	}
 
 	/**
 	 * @see Connection#Connection(String)
 	 */
 	public HttpsConnection(String host) {
-		super(host, DESTINATION_PORT);
+		this(host, defaultContext());
+	}
+
+	/**
+	 * @return the default SSLContext
+	 */
+	private static SSLContext defaultContext() {
+		try {
+			return SSLContext.getDefault();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("TLS is not available", e);
+		}
+	}
+
+	/**
+	 * Restricts the TLS protocol versions used for new sockets.
+	 * 
+	 * @param protocols
+	 *            the protocols to enable (e.g. TLSv1.3, TLSv1.2), or null for
+	 *            the defaults of the SSLContext
+	 */
+	public void setEnabledProtocols(String... protocols) {
+		this.protocols = protocols == null ? null : protocols.clone();
+	}
+
+	/**
+	 * Restricts the cipher suites used for new sockets.
+	 * 
+	 * @param cipherSuites
+	 *            the cipher suites to enable, or null for the defaults of the
+	 *            SSLContext
+	 */
+	public void setEnabledCipherSuites(String... cipherSuites) {
+		this.cipherSuites = cipherSuites == null ? null : cipherSuites.clone();
+	}
+
+	/**
+	 * Sets the maximum number of sessions cached for resumption. Note that the
+	 * session cache belongs to the SSLContext and is shared with its other
+	 * users.
+	 * 
+	 * @param size
+	 *            the maximum number of cached sessions, or 0 for no limit
+	 */
+	public void setSessionCacheSize(int size) {
+		context.getClientSessionContext().setSessionCacheSize(size);
+	}
+
+	/**
+	 * Sets how long a cached session can be resumed. Note that the session
+	 * cache belongs to the SSLContext and is shared with its other users.
+	 * 
+	 * @param seconds
+	 *            the session timeout in seconds, or 0 for no limit
+	 */
+	public void setSessionTimeout(int seconds) {
+		context.getClientSessionContext().setSessionTimeout(seconds);
+	}
+
+	/**
+	 * Enables or disables HTTP/2. When enabled, requests that return a complete
+	 * response ({@link #get(String)}, {@link #post(String, String)},
+	 * {@link #getResponse(String)}, ...) and asynchronous requests are sent as
+	 * streams of a single multiplexed HTTP/2 connection. Streaming and
+	 * pipelined requests keep using HTTP/1.1. If the server does not support
+	 * HTTP/2, requests fall back to HTTP/1.1.
+	 * 
+	 * The protocols, cipher suites and connection timeout that are set when
+	 * HTTP/2 is enabled apply to the HTTP/2 connection. Handshakes of the
+	 * HTTP/2 connection are not counted in the handshake statistics.
+	 * 
+	 * @param enabled
+	 *            true to use HTTP/2
+	 */
+	public void setHttp2Enabled(boolean enabled) {
+		if (enabled) {
+			setHttp2Transport(new Http2Transport(context,
+					configure(context.getDefaultSSLParameters()), host,
+					port, connectionTimeout));
+		} else {
+			setHttp2Transport(null);
+		}
+	}
+
+	/**
+	 * @return true if HTTP/2 is enabled
+	 */
+	public boolean isHttp2Enabled() {
+		return getHttp2Transport() != null;
+	}
+
+	/**
+	 * @return the number of handshakes that negotiated a new session
+	 */
+	public long getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+
+	/**
+	 * @return the number of handshakes that resumed a cached session
+	 */
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	/**
+	 * @return the total time spent in handshakes, in nanoseconds
+	 */
+	public long getHandshakeNanos() {
+		return handshakeNanos.get();
 	}
 
 	@Override
 	protected Socket createSocket() throws IOException {
-		SSLSocketFactory ssf = (SSLSocketFactory) SSLSocketFactory.getDefault();
-		return ssf.createSocket();
+		return new Socket();
+	}
+
+	/**
+	 * Layers TLS on top of the connected socket and performs the handshake.
+	 */
+	@Override
+	protected Socket layerSocket(Socket socket) throws IOException {
+		SSLSocket ssl = (SSLSocket) context.getSocketFactory().createSocket(
+				socket, host, port, true);
+		ssl.setSSLParameters(configure(ssl.getSSLParameters()));
+
+		Set<ByteBuffer> cached = getCachedSessionIds();
+		long start = System.nanoTime();
+		ssl.startHandshake();
+		handshakeNanos.addAndGet(System.nanoTime() - start);
+
+		// a resumed session is one that was cached before the handshake
+		byte[] id = ssl.getSession().getId();
+		if (id.length > 0 && cached.contains(ByteBuffer.wrap(id))) {
+			resumedHandshakes.incrementAndGet();
+		} else {
+			fullHandshakes.incrementAndGet();
+		}
+		return ssl;
+	}
+
+	/**
+	 * @return the ids of the sessions in the client session cache
+	 */
+	private Set<ByteBuffer> getCachedSessionIds() {
+		Set<ByteBuffer> ids = new HashSet<ByteBuffer>();
+		Enumeration<byte[]> e = context.getClientSessionContext().getIds();
+		while (e.hasMoreElements()) {
+			ids.add(ByteBuffer.wrap(e.nextElement()));
+		}
+		return ids;
+	}
+
+	@Override
+	protected SSLEngine createSSLEngine() throws IOException {
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		engine.setSSLParameters(configure(engine.getSSLParameters()));
+		return engine;
+	}
+
+	/**
+	 * Enables hostname verification and SNI for the destination host and
+	 * applies the configured protocols and cipher suites.
+	 * 
+	 * @param parameters
+	 *            the parameters of a new socket or engine
+	 * @return the configured parameters
+	 */
+	private SSLParameters configure(SSLParameters parameters) {
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		if (isHostName(host)) {
+			parameters.setServerNames(Collections
+					.<SNIServerName> singletonList(new SNIHostName(host)));
+		}
+
+		String[] protocols = this.protocols;
+		if (protocols != null) {
+			parameters.setProtocols(protocols);
+		}
+		String[] cipherSuites = this.cipherSuites;
+		if (cipherSuites != null) {
+			parameters.setCipherSuites(cipherSuites);
+		}
+		return parameters;
+	}
+
+	/**
+	 * @return false if host is an IP address literal, for which SNI is not
+	 *         allowed
+	 */
+	private static boolean isHostName(String host) {
+		if (host.indexOf(':') >= 0) {
+			return false; // IPv6
+		}
+		for (int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9')) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
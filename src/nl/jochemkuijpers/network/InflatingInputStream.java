@@ -0,0 +1,277 @@
+package nl.jochemkuijpers.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a gzip or deflate encoded response body while it is read.
+ * 
+ * The gzip header and trailer are parsed here, so a single raw Inflater can
+ * decode both encodings and be reused for every response on a socket. A
+ * deflate body may be sent with or without the zlib wrapper; both are
+ * accepted. An empty body decodes to an empty body.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class InflatingInputStream extends InputStream {
+	private final static int BUFFER_SIZE = 8192;
+
+	private final static int FHCRC = 2;
+	private final static int FEXTRA = 4;
+	private final static int FNAME = 8;
+	private final static int FCOMMENT = 16;
+
+	private final InputStream in;
+	private final Inflater inflater;
+	private final boolean gzip;
+	private final CRC32 crc;
+	private final AtomicLong compressedBytes;
+	private final AtomicLong decompressedBytes;
+
+	private final byte[] buffer;
+	private int pos;
+	private int limit;
+
+	private boolean started;
+	private boolean zlib;
+	private boolean ended;
+
+	/**
+	 * @param in
+	 *            the encoded body
+	 * @param inflater
+	 *            a raw (nowrap) inflater that was reset
+	 * @param gzip
+	 *            true for gzip, false for deflate
+	 * @param compressedBytes
+	 *            counter to add the number of encoded bytes read to
+	 * @param decompressedBytes
+	 *            counter to add the number of decoded bytes returned to
+	 */
+	InflatingInputStream(InputStream in, Inflater inflater, boolean gzip,
+			AtomicLong compressedBytes, AtomicLong decompressedBytes) {
+		this.in = in;
+		this.inflater = inflater;
+		this.gzip = gzip;
+		this.crc = gzip ? new CRC32() : null;
+		this.compressedBytes = compressedBytes;
+		this.decompressedBytes = decompressedBytes;
+		this.buffer = new byte[BUFFER_SIZE];
+		this.pos = 0;
+		this.limit = 0;
+		this.started = false;
+		this.zlib = false;
+		this.ended = false;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int len = read(b, 0, 1);
+		if (len <= 0) {
+			return -1;
+		}
+		return b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (ended) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (!started) {
+			started = true;
+			if (!readHeader()) {
+				ended = true;
+				return -1;
+			}
+			inflater.setInput(buffer, pos, limit - pos);
+		}
+
+		while (true) {
+			int n;
+			try {
+				n = inflater.inflate(b, off, len);
+			} catch (DataFormatException e) {
+				throw new ZipException("Invalid compressed data: "
+						+ e.getMessage());
+			}
+			if (n > 0) {
+				if (gzip) {
+					crc.update(b, off, n);
+				}
+				decompressedBytes.addAndGet(n);
+				return n;
+			}
+
+			if (inflater.finished()) {
+				pos = limit - inflater.getRemaining();
+				readTrailer();
+				ended = true;
+				return -1;
+			}
+			if (inflater.needsDictionary()) {
+				throw new ZipException("Preset dictionaries are not supported");
+			}
+			if (inflater.needsInput()) {
+				if (fill() < 0) {
+					throw new EOFException("Unexpected end of compressed data");
+				}
+				inflater.setInput(buffer, pos, limit - pos);
+			}
+		}
+	}
+
+	@Override
+	public int available() throws IOException {
+		return ended ? 0 : 1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads the gzip header, or the zlib header of a deflate body if present.
+	 * 
+	 * @return false if the body is empty
+	 * @throws IOException
+	 *             if an error occurred or the header is invalid
+	 */
+	private boolean readHeader() throws IOException {
+		if (pos == limit && fill() < 0) {
+			return false;
+		}
+
+		if (!gzip) {
+			// a zlib header is a multiple of 31 with compression method 8
+			while (limit - pos < 2) {
+				if (fillMore() < 0) {
+					return true; // a single byte is left to the inflater
+				}
+			}
+			int cmf = buffer[pos] & 0xff;
+			int flg = buffer[pos + 1] & 0xff;
+			if ((cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0) {
+				if ((flg & 0x20) != 0) {
+					throw new ZipException("Preset dictionaries are not supported");
+				}
+				zlib = true;
+				pos += 2;
+			}
+			return true;
+		}
+
+		if (readUnsignedByte() != 0x1f || readUnsignedByte() != 0x8b) {
+			throw new ZipException("Not in gzip format");
+		}
+		if (readUnsignedByte() != 8) {
+			throw new ZipException("Unsupported gzip compression method");
+		}
+		int flags = readUnsignedByte();
+		skip(6); // modification time, extra flags, operating system
+
+		if ((flags & FEXTRA) != 0) {
+			skip(readUnsignedByte() | (readUnsignedByte() << 8));
+		}
+		if ((flags & FNAME) != 0) {
+			while (readUnsignedByte() != 0) {
+				// skip file name
+			}
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (readUnsignedByte() != 0) {
+				// skip comment
+			}
+		}
+		if ((flags & FHCRC) != 0) {
+			skip(2);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads and verifies the gzip trailer, or skips the zlib checksum.
+	 * 
+	 * @throws IOException
+	 *             if an error occurred or the checksum does not match
+	 */
+	private void readTrailer() throws IOException {
+		if (zlib) {
+			skip(4);
+			return;
+		}
+		if (!gzip) {
+			return;
+		}
+
+		long checksum = readIntLE() & 0xffffffffL;
+		long size = readIntLE() & 0xffffffffL;
+		if (checksum != crc.getValue()) {
+			throw new ZipException("Corrupt gzip data (CRC mismatch)");
+		}
+		if (size != (inflater.getBytesWritten() & 0xffffffffL)) {
+			throw new ZipException("Corrupt gzip data (size mismatch)");
+		}
+	}
+
+	private int readIntLE() throws IOException {
+		return readUnsignedByte() | (readUnsignedByte() << 8)
+				| (readUnsignedByte() << 16) | (readUnsignedByte() << 24);
+	}
+
+	private int readUnsignedByte() throws IOException {
+		if (pos == limit && fill() < 0) {
+			throw new EOFException("Unexpected end of compressed data");
+		}
+		return buffer[pos++] & 0xff;
+	}
+
+	private void skip(int n) throws IOException {
+		for (int i = 0; i < n; i++) {
+			readUnsignedByte();
+		}
+	}
+
+	/**
+	 * Refills the buffer after it has been consumed completely.
+	 * 
+	 * @return the number of bytes read, or -1 at the end of the body
+	 */
+	private int fill() throws IOException {
+		pos = 0;
+		limit = 0;
+		return fillMore();
+	}
+
+	/**
+	 * Reads more bytes after the bytes remaining in the buffer.
+	 * 
+	 * @return the number of bytes read, or -1 at the end of the body
+	 */
+	private int fillMore() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		int n = in.read(buffer, limit, buffer.length - limit);
+		if (n > 0) {
+			limit += n;
+			compressedBytes.addAndGet(n);
+		}
+		return n;
+	}
+}
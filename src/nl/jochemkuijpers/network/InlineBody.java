@@ -0,0 +1,27 @@
+package nl.jochemkuijpers.network;
+
+/**
+ * A request body that can be written into an array, so that a small body is
+ * sent in the same write as the request head.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+interface InlineBody extends RequestBody {
+
+	@Override
+	long getLength();
+
+	/**
+	 * Writes the body into an array.
+	 * 
+	 * @param dest
+	 *            the array to write to, with at least {@link #getLength()}
+	 *            bytes left after pos
+	 * @param pos
+	 *            the position to start writing at
+	 * @return the position after the body
+	 */
+	int writeTo(byte[] dest, int pos);
+}
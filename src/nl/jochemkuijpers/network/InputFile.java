@@ -1,8 +1,26 @@
 package nl.jochemkuijpers.network;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 /**
  * A helper class to upload files using the POST multipart methods.
  * 
+ * The content of a file can be given as a byte array, as a path to a local file
+ * or as an InputStream of known length. Files given as a path or InputStream
+ * are streamed to the socket while the request is sent and are never held in
+ * memory as a whole.
+ * 
  * Please refer to the LICENSE file for the license corresponding to this code.
  * 
  * @author Jochem Kuijpers
@@ -11,6 +29,9 @@ public class InputFile {
 	private final String fileName;
 	private final String contentType;
 	private final byte[] content;
+	private final Path path;
+	private final InputStream stream;
+	private volatile long size;
 
 	/**
 	 * Create an input file to send via
@@ -36,6 +57,60 @@ public class InputFile {
 		this.fileName = fileName;
 		this.contentType = contentType;
 		this.content = content;
+		this.path = null;
+		this.stream = null;
+		this.size = content.length;
+	}
+
+	/**
+	 * Create an input file of which the content is read from a local file while
+	 * the request is sent. The size of the file is determined once, when it is
+	 * first needed, and exactly that many bytes are sent. Sending fails if the
+	 * file has become shorter by then.
+	 * 
+	 * @see #InputFile(String, String, byte[])
+	 * @param fileName
+	 *            file name, need not match the local file name
+	 * @param contentType
+	 *            content type
+	 * @param path
+	 *            the local file to send
+	 */
+	public InputFile(String fileName, String contentType, Path path) {
+		this.fileName = fileName;
+		this.contentType = contentType;
+		this.content = null;
+		this.path = path;
+		this.stream = null;
+		this.size = -1;
+	}
+
+	/**
+	 * Create an input file of which the content is read from an InputStream
+	 * while the request is sent. The InputStream can only be sent once and is
+	 * not closed.
+	 * 
+	 * @see #InputFile(String, String, byte[])
+	 * @param fileName
+	 *            file name, need not match the local file name
+	 * @param contentType
+	 *            content type
+	 * @param stream
+	 *            the content of the file
+	 * @param length
+	 *            the exact number of bytes that will be read from the stream
+	 */
+	public InputFile(String fileName, String contentType, InputStream stream,
+			long length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("length must not be negative");
+		}
+		this.fileName = fileName;
+		this.contentType = contentType;
+		this.content = null;
+		this.path = null;
+		this.stream = stream;
+		this.size = length;
 	}
 
 	/**
@@ -53,9 +128,105 @@ public class InputFile {
 	}
 
 	/**
+	 * Returns the content of the file. For files given as a path or
+	 * InputStream, the content is read into memory by this method.
+	 * 
 	 * @return file content
+	 * @throws UncheckedIOException
+	 *             if the content could not be read
 	 */
 	public byte[] getContent() {
-		return content;
+		if (content != null) {
+			return content;
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeTo(out, null);
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return the length of the file content in bytes
+	 * @throws IOException
+	 *             if the size of a local file could not be determined
+	 */
+	public long getLength() throws IOException {
+		if (size < 0) {
+			size = Files.size(path);
+		}
+		return size;
+	}
+
+	/**
+	 * @return false if the content is read from an InputStream and can
+	 *         therefore only be sent once
+	 */
+	boolean isRepeatable() {
+		return stream == null;
+	}
+
+	/**
+	 * Writes the content of the file. The content of a local file is
+	 * transferred directly to the socket channel if there is one, without
+	 * copying it through the Java heap.
+	 * 
+	 * @param out
+	 *            the OutputStream to write to
+	 * @param channel
+	 *            the channel that out writes to, or null
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	void writeTo(OutputStream out, WritableByteChannel channel)
+			throws IOException {
+		if (content != null) {
+			out.write(content);
+			return;
+		}
+
+		if (path != null) {
+			long size = getLength();
+			try (FileChannel file = FileChannel.open(path,
+					StandardOpenOption.READ)) {
+				if (channel == null) {
+					copy(Channels.newInputStream(file), out, size);
+					return;
+				}
+
+				out.flush();
+				for (long n = 0; n < size;) {
+					long len = file.transferTo(n, size - n, channel);
+					if (len <= 0) {
+						throw new EOFException("File content ended "
+								+ (size - n) + " bytes early");
+					}
+					n += len;
+				}
+			}
+			return;
+		}
+
+		copy(stream, out, size);
+	}
+
+	/**
+	 * Copies exactly length bytes from an InputStream to an OutputStream.
+	 */
+	private static void copy(InputStream in, OutputStream out, long length)
+			throws IOException {
+		byte[] buffer = new byte[8192];
+		for (long n = 0; n < length;) {
+			int len = in.read(buffer, 0, (int) Math.min(buffer.length, length
+					- n));
+			if (len < 0) {
+				throw new EOFException("File content ended " + (length - n)
+						+ " bytes early");
+			}
+			out.write(buffer, 0, len);
+			n += len;
+		}
 	}
 }
@@ -0,0 +1,137 @@
+package nl.jochemkuijpers.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a latency histogram of the requests to each host. One listener can be
+ * added to multiple connections.
+ * 
+ * Only requests that received a response are recorded in the histograms;
+ * failed requests are counted separately.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class LatencyListener implements RequestListener {
+	private final static double[] REPORTED_QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final ConcurrentMap<String, LatencyHistogram> histograms;
+	private final ConcurrentMap<String, AtomicLong> errors;
+
+	/**
+	 * Creates a listener without any recorded requests.
+	 */
+	public LatencyListener() {
+		this.histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+		this.errors = new ConcurrentHashMap<String, AtomicLong>();
+	}
+
+	@Override
+	public void requestCompleted(RequestMetrics metrics) {
+		String host = metrics.getHost();
+		if (metrics.getError() != null) {
+			AtomicLong count = errors.get(host);
+			if (count == null) {
+				AtomicLong created = new AtomicLong();
+				count = errors.putIfAbsent(host, created);
+				if (count == null) {
+					count = created;
+				}
+			}
+			count.incrementAndGet();
+			return;
+		}
+		getOrCreate(host).record(metrics.getTotalNanos());
+	}
+
+	/**
+	 * @param host
+	 *            the host
+	 * @return the latency histogram of the host, or null if no request to the
+	 *         host was recorded
+	 */
+	public LatencyHistogram getHistogram(String host) {
+		return histograms.get(host);
+	}
+
+	/**
+	 * @param host
+	 *            the host
+	 * @return the number of requests to the host that failed without a
+	 *         response
+	 */
+	public long getErrors(String host) {
+		AtomicLong count = errors.get(host);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * @return the hosts of which requests were recorded, sorted
+	 */
+	public List<String> getHosts() {
+		List<String> hosts = new ArrayList<String>(histograms.keySet());
+		for (String host : errors.keySet()) {
+			if (!histograms.containsKey(host)) {
+				hosts.add(host);
+			}
+		}
+		Collections.sort(hosts);
+		return hosts;
+	}
+
+	/**
+	 * Formats the recorded latencies in the Prometheus text format, with one
+	 * summary per host. Latencies are reported in seconds.
+	 * 
+	 * @return the report, one metric per line
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		for (String host : getHosts()) {
+			LatencyHistogram histogram = getHistogram(host);
+			if (histogram != null) {
+				for (double quantile : REPORTED_QUANTILES) {
+					sb.append("http_request_duration_seconds{host=\"")
+							.append(host).append("\",quantile=\"")
+							.append(quantile).append("\"} ")
+							.append(seconds(histogram
+									.getPercentileNanos(quantile * 100)))
+							.append('\n');
+				}
+				sb.append("http_request_duration_seconds_sum{host=\"")
+						.append(host).append("\"} ")
+						.append(seconds(histogram.getTotalNanos()))
+						.append('\n');
+				sb.append("http_request_duration_seconds_count{host=\"")
+						.append(host).append("\"} ")
+						.append(histogram.getCount()).append('\n');
+			}
+			sb.append("http_request_errors_total{host=\"").append(host)
+					.append("\"} ").append(getErrors(host)).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private LatencyHistogram getOrCreate(String host) {
+		LatencyHistogram histogram = histograms.get(host);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(host, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+	}
+}
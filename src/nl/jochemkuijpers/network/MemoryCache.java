@@ -0,0 +1,130 @@
+package nl.jochemkuijpers.network;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An {@link HttpCache} that keeps responses in memory, up to a maximum total
+ * size. When the cache is full, the least recently used entries are evicted.
+ * 
+ * A second tier, such as a {@link DiskCache}, can be placed behind the memory
+ * cache. Entries are then written to both tiers, and entries found only in the
+ * second tier are moved back into memory when they are used.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class MemoryCache implements HttpCache {
+	private final long maxBytes;
+	private final HttpCache next;
+	private final LinkedHashMap<String, CacheEntry> entries;
+
+	private long size;
+
+	/**
+	 * Creates a memory cache without a second tier.
+	 * 
+	 * @param maxBytes
+	 *            the maximum total size of the cached responses
+	 */
+	public MemoryCache(long maxBytes) {
+		this(maxBytes, null);
+	}
+
+	/**
+	 * Creates a memory cache in front of a second tier.
+	 * 
+	 * @param maxBytes
+	 *            the maximum total size of the cached responses in memory
+	 * @param next
+	 *            the second tier, or null
+	 */
+	public MemoryCache(long maxBytes, HttpCache next) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+		this.maxBytes = maxBytes;
+		this.next = next;
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+		this.size = 0;
+	}
+
+	@Override
+	public CacheEntry get(String key) {
+		synchronized (this) {
+			CacheEntry entry = entries.get(key);
+			if (entry != null || next == null) {
+				return entry;
+			}
+		}
+
+		CacheEntry entry = next.get(key);
+		if (entry != null) {
+			store(key, entry);
+		}
+		return entry;
+	}
+
+	@Override
+	public void put(String key, CacheEntry entry) {
+		store(key, entry);
+		if (next != null) {
+			next.put(key, entry);
+		}
+	}
+
+	@Override
+	public void remove(String key) {
+		synchronized (this) {
+			CacheEntry old = entries.remove(key);
+			if (old != null) {
+				size -= old.getSize();
+			}
+		}
+		if (next != null) {
+			next.remove(key);
+		}
+	}
+
+	/**
+	 * @return the total size of the responses in memory
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Removes all entries from memory. The second tier is not cleared.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Puts an entry in memory and evicts the least recently used entries until
+	 * the cache fits. Entries larger than the cache are not kept in memory.
+	 */
+	private synchronized void store(String key, CacheEntry entry) {
+		CacheEntry old = entries.remove(key);
+		if (old != null) {
+			size -= old.getSize();
+		}
+
+		long entrySize = entry.getSize();
+		if (entrySize > maxBytes) {
+			return;
+		}
+		entries.put(key, entry);
+		size += entrySize;
+
+		Iterator<Map.Entry<String, CacheEntry>> it = entries.entrySet()
+				.iterator();
+		while (size > maxBytes && it.hasNext()) {
+			size -= it.next().getValue().getSize();
+			it.remove();
+		}
+	}
+}
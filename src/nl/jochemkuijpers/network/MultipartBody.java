@@ -0,0 +1,131 @@
+package nl.jochemkuijpers.network;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A multipart/form-data request body of form fields and files. Only the part
+ * headers are held in memory; file contents are written to the socket as the
+ * body is sent, so the length of the body is known up front without buffering
+ * it.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class MultipartBody implements RequestBody {
+	private final static int BUFFER_SIZE = 8192;
+	private final static byte[] CRLF = { '\r', '\n' };
+
+	private final String boundary;
+	private final byte[] fields;
+	private final List<byte[]> fileHeads;
+	private final List<InputFile> files;
+	private final byte[] end;
+
+	/**
+	 * Builds the part headers of a multipart body.
+	 * 
+	 * @param formFields
+	 *            a mapping from field name to field value. These should not be
+	 *            url-encoded.
+	 * @param fileFields
+	 *            a mapping from field name to InputFile. These values should
+	 *            not be url-encoded.
+	 */
+	MultipartBody(Map<String, String> formFields,
+			Map<String, InputFile> fileFields) {
+		this.boundary = generateBoundary();
+
+		StringBuilder sb = new StringBuilder();
+		for (Entry<String, String> entry : formFields.entrySet()) {
+			sb.append("--").append(boundary).append("\r\n");
+			sb.append("Content-Disposition: form-data; name=\"");
+			sb.append(NetworkUtils.urlEncode(entry.getKey()));
+			sb.append("\";\r\n");
+			sb.append("Content-type: text/plain; charset=utf-8\r\n\r\n");
+			sb.append(entry.getValue());
+			sb.append("\r\n");
+		}
+		this.fields = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+		this.fileHeads = new ArrayList<byte[]>();
+		this.files = new ArrayList<InputFile>();
+		for (Entry<String, InputFile> entry : fileFields.entrySet()) {
+			InputFile file = entry.getValue();
+
+			sb.setLength(0);
+			sb.append("--").append(boundary).append("\r\n");
+			sb.append("Content-Disposition: form-data; name=\"");
+			sb.append(NetworkUtils.urlEncode(entry.getKey()));
+			sb.append("\"; filename=\"");
+			sb.append(NetworkUtils.urlEncode(file.getFileName()));
+			sb.append("\"\r\n");
+			sb.append("Content-Type: ");
+			sb.append(file.getContentType());
+			sb.append("\r\n\r\n");
+
+			fileHeads.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+			files.add(file);
+		}
+
+		this.end = ("--" + boundary + "--\r\n")
+				.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return a sufficiently unique boundary string for multipart requests
+	 */
+	private static String generateBoundary() {
+		return "--------------------------------boundary-"
+				+ (System.currentTimeMillis() ^ System.nanoTime());
+	}
+
+	@Override
+	public String getContentType() {
+		return "multipart/form-data; boundary=" + boundary;
+	}
+
+	@Override
+	public long getLength() throws IOException {
+		long length = fields.length + end.length;
+		for (int i = 0; i < files.size(); i++) {
+			length += fileHeads.get(i).length + files.get(i).getLength()
+					+ CRLF.length;
+		}
+		return length;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		for (InputFile file : files) {
+			if (!file.isRepeatable()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void writeTo(OutputStream out, WritableByteChannel channel)
+			throws IOException {
+		BufferedOutputStream buffered = new BufferedOutputStream(out,
+				BUFFER_SIZE);
+
+		buffered.write(fields);
+		for (int i = 0; i < files.size(); i++) {
+			buffered.write(fileHeads.get(i));
+			files.get(i).writeTo(buffered, channel);
+			buffered.write(CRLF);
+		}
+		buffered.write(end);
+		buffered.flush();
+	}
+}
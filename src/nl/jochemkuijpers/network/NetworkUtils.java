@@ -4,10 +4,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  * Various utility methods used in this package.
@@ -63,6 +61,26 @@ public class NetworkUtils {
 		}
 	}
 
+	/**
+	 * Parses the status code from a status line.
+	 * 
+	 * @param status
+	 *            a status line, e.g. HTTP/1.1 200 OK
+	 * @return the numeric status code, or -1 if the status line could not be
+	 *         parsed
+	 */
+	static int parseStatusCode(String status) {
+		String[] parts = status.split(" ", 3);
+		if (parts.length < 2) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(parts[1]);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
 	/**
 	 * Creates a query string from a field name to value mapping, without ?
 	 * prefix.
@@ -72,19 +90,10 @@ public class NetworkUtils {
 	 * @return query string
 	 */
 	public static String mapToQueryString(Map<String, String> fields) {
-		StringBuilder sb = new StringBuilder();
-		boolean first = true;
-		for (Entry<String, String> entry : fields.entrySet()) {
-			if (first) {
-				first = false;
-			} else {
-				sb.append('&');
-			}
-			sb.append(NetworkUtils.urlEncode(entry.getKey()));
-			sb.append('=');
-			sb.append(NetworkUtils.urlEncode(entry.getValue()));
-		}
-		return sb.toString();
+		FormBody form = new FormBody(fields);
+		byte[] encoded = new byte[toArrayLength(form.getLength())];
+		form.writeTo(encoded, 0);
+		return new String(encoded, StandardCharsets.US_ASCII);
 	}
 
 	/**
@@ -95,10 +104,16 @@ public class NetworkUtils {
 	 * @return url-encoded string
 	 */
 	public static String urlEncode(String str) {
-		try {
-			return URLEncoder.encode(str, ENCODING);
-		} catch (UnsupportedEncodingException e) {
-			throw new AssertionError(ENCODING + " not supported.");
+		byte[] encoded = new byte[toArrayLength(PercentEncoder
+				.encodedLength(str))];
+		PercentEncoder.encode(str, encoded, 0);
+		return new String(encoded, StandardCharsets.US_ASCII);
+	}
+
+	private static int toArrayLength(long length) {
+		if (length > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Encoded string is too long");
 		}
+		return (int) length;
 	}
 }
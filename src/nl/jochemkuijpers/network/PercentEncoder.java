@@ -0,0 +1,159 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes strings for application/x-www-form-urlencoded bodies and query
+ * strings, with the same result as {@link java.net.URLEncoder} with UTF-8.
+ * 
+ * Characters are encoded to UTF-8 and written as bytes straight into a
+ * buffer, without creating intermediate strings or byte arrays. A table
+ * tells for each byte whether it is written as is.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class PercentEncoder {
+	/** the maximum number of bytes a single char is encoded to */
+	final static int MAX_BYTES_PER_CHAR = 12;
+
+	private final static byte[] HEX = { '0', '1', '2', '3', '4', '5', '6',
+			'7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+	/** the byte written for each ASCII character, or 0 if it is escaped */
+	private final static byte[] SAFE = new byte[128];
+
+	static {
+		for (int c = 'a'; c <= 'z'; c++) {
+			SAFE[c] = (byte) c;
+		}
+		for (int c = 'A'; c <= 'Z'; c++) {
+			SAFE[c] = (byte) c;
+		}
+		for (int c = '0'; c <= '9'; c++) {
+			SAFE[c] = (byte) c;
+		}
+		SAFE['.'] = '.';
+		SAFE['-'] = '-';
+		SAFE['*'] = '*';
+		SAFE['_'] = '_';
+		SAFE[' '] = '+';
+	}
+
+	private PercentEncoder() {
+	}
+
+	/**
+	 * @param s
+	 *            the string to encode
+	 * @return the number of bytes s is encoded to
+	 */
+	static long encodedLength(CharSequence s) {
+		long length = 0;
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += SAFE[c] != 0 ? 1 : 3;
+			} else if (c < 0x800) {
+				length += 6;
+			} else if (Character.isHighSurrogate(c) && i + 1 < n
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 12;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length += 3; // unpaired surrogates are encoded as ?
+			} else {
+				length += 9;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Encodes a string into an array that is large enough to hold it.
+	 * 
+	 * @param s
+	 *            the string to encode
+	 * @param dest
+	 *            the array to write to
+	 * @param pos
+	 *            the position to start writing at
+	 * @return the position after the encoded string
+	 */
+	static int encode(CharSequence s, byte[] dest, int pos) {
+		try {
+			return encode(s, dest, pos, null);
+		} catch (IOException e) {
+			throw new AssertionError(e); // nothing is written to a stream
+		}
+	}
+
+	/**
+	 * Encodes a string into a buffer. Whenever the buffer is almost full, it is
+	 * written to an OutputStream and filled again from the start.
+	 * 
+	 * @param s
+	 *            the string to encode
+	 * @param buffer
+	 *            the buffer to write to, at least
+	 *            {@link #MAX_BYTES_PER_CHAR} bytes long
+	 * @param pos
+	 *            the number of bytes in the buffer
+	 * @param out
+	 *            the OutputStream to flush the buffer to, or null if the
+	 *            buffer is large enough to hold the encoded string
+	 * @return the number of bytes in the buffer afterwards
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	static int encode(CharSequence s, byte[] buffer, int pos, OutputStream out)
+			throws IOException {
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			if (out != null && pos > buffer.length - MAX_BYTES_PER_CHAR) {
+				out.write(buffer, 0, pos);
+				pos = 0;
+			}
+
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				byte safe = SAFE[c];
+				if (safe != 0) {
+					buffer[pos++] = safe;
+				} else {
+					pos = escape(buffer, pos, c);
+				}
+			} else if (c < 0x800) {
+				pos = escape(buffer, pos, 0xc0 | (c >> 6));
+				pos = escape(buffer, pos, 0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				pos = escape(buffer, pos, 0xf0 | (cp >> 18));
+				pos = escape(buffer, pos, 0x80 | ((cp >> 12) & 0x3f));
+				pos = escape(buffer, pos, 0x80 | ((cp >> 6) & 0x3f));
+				pos = escape(buffer, pos, 0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				pos = escape(buffer, pos, '?');
+			} else {
+				pos = escape(buffer, pos, 0xe0 | (c >> 12));
+				pos = escape(buffer, pos, 0x80 | ((c >> 6) & 0x3f));
+				pos = escape(buffer, pos, 0x80 | (c & 0x3f));
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Writes a byte as %XX.
+	 */
+	private static int escape(byte[] dest, int pos, int b) {
+		dest[pos] = '%';
+		dest[pos + 1] = HEX[(b >> 4) & 0xf];
+		dest[pos + 2] = HEX[b & 0xf];
+		return pos + 3;
+	}
+}
@@ -0,0 +1,121 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.zip.Inflater;
+
+/**
+ * A connected socket that can be kept alive in a {@link ConnectionPool}
+ * between requests.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class PooledSocket {
+	private final Socket socket;
+	private final HttpInputStream in;
+	private final OutputStream out;
+	private Inflater inflater;
+
+	private long lastUsed;
+	private boolean reused;
+
+	/**
+	 * Wraps a connected socket.
+	 * 
+	 * @param socket
+	 *            a connected socket
+	 * @param bufferSize
+	 *            the size of the buffer of the socket InputStream
+	 * @throws IOException
+	 *             if the socket streams could not be opened
+	 */
+	PooledSocket(Socket socket, int bufferSize) throws IOException {
+		this.socket = socket;
+		this.in = new HttpInputStream(socket.getInputStream(), bufferSize);
+		this.out = socket.getOutputStream();
+		this.lastUsed = System.nanoTime();
+		this.reused = false;
+	}
+
+	/**
+	 * @return the underlying socket
+	 */
+	Socket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * @return the buffered socket input stream
+	 */
+	HttpInputStream getInputStream() {
+		return in;
+	}
+
+	/**
+	 * @return the socket output stream
+	 */
+	OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * Returns the inflater for decoding the current response. The inflater is
+	 * created on first use and reused for later responses on this socket.
+	 * 
+	 * @return a raw (nowrap) inflater that was reset
+	 */
+	Inflater getInflater() {
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		} else {
+			inflater.reset();
+		}
+		return inflater;
+	}
+
+	/**
+	 * @return true if this socket already served a request before the current
+	 *         one. A reused socket may have been closed by the server while it
+	 *         was idle.
+	 */
+	boolean isReused() {
+		return reused;
+	}
+
+	/**
+	 * Marks this socket as idle from now on.
+	 */
+	void markIdle() {
+		lastUsed = System.nanoTime();
+		reused = true;
+	}
+
+	/**
+	 * @param idleTimeoutNanos
+	 *            the maximum idle time in nanoseconds
+	 * @param now
+	 *            the current System.nanoTime()
+	 * @return true if this socket was idle for longer than allowed or was
+	 *         closed
+	 */
+	boolean isExpired(long idleTimeoutNanos, long now) {
+		return socket.isClosed() || now - lastUsed > idleTimeoutNanos;
+	}
+
+	/**
+	 * Closes the socket, ignoring any errors.
+	 */
+	void close() {
+		if (inflater != null) {
+			inflater.end();
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to do, the socket is discarded anyway
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A request body published as ByteBuffers by a {@link Flow.Publisher}. The
+ * body is sent chunked. A few buffers are requested ahead, so the publisher
+ * can produce the next buffers while earlier ones are written, and no more
+ * are requested than have been written. The body can only be sent once.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class PublisherBody implements RequestBody {
+	private final static int BUFFER_SIZE = 8192;
+	private final static int PREFETCH = 4;
+	private final static Object COMPLETE = new Object();
+
+	private final String contentType;
+	private final Flow.Publisher<ByteBuffer> publisher;
+
+	/**
+	 * @param contentType
+	 *            content type of the body, or null
+	 * @param publisher
+	 *            the publisher of the body
+	 */
+	PublisherBody(String contentType, Flow.Publisher<ByteBuffer> publisher) {
+		this.contentType = contentType;
+		this.publisher = publisher;
+	}
+
+	/**
+	 * @return the publisher of the body
+	 */
+	Flow.Publisher<ByteBuffer> getPublisher() {
+		return publisher;
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public long getLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public void writeTo(OutputStream out, WritableByteChannel channel)
+			throws IOException {
+		final BlockingQueue<Object> items = new LinkedBlockingQueue<Object>();
+		final Flow.Subscription[] subscription = new Flow.Subscription[1];
+		publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription[0] = s;
+				items.add(s);
+			}
+
+			@Override
+			public void onNext(ByteBuffer item) {
+				items.add(item);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				items.add(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				items.add(COMPLETE);
+			}
+		});
+
+		byte[] buffer = new byte[BUFFER_SIZE];
+		boolean done = false;
+		try {
+			while (true) {
+				Object item = items.take();
+				if (item == COMPLETE) {
+					break;
+				} else if (item instanceof Throwable) {
+					throw new IOException("Request body publisher failed",
+							(Throwable) item);
+				} else if (item instanceof Flow.Subscription) {
+					((Flow.Subscription) item).request(PREFETCH);
+				} else {
+					SupplierBody.write(out, (ByteBuffer) item, buffer);
+					subscription[0].request(1);
+				}
+			}
+			done = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for the request body");
+		} finally {
+			if (!done && subscription[0] != null) {
+				subscription[0].cancel();
+			}
+		}
+		out.flush();
+	}
+}
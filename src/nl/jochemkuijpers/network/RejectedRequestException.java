@@ -0,0 +1,24 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request is not sent because the concurrency limit of the host
+ * was reached and the request could not wait for its turn.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ * @see ConcurrencyLimiter
+ */
+public class RejectedRequestException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param message
+	 *            the reason the request was rejected
+	 */
+	public RejectedRequestException(String message) {
+		super(message);
+	}
+}
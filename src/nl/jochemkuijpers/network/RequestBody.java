@@ -0,0 +1,51 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The body of a request, which is written to the socket after the request
+ * head.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+interface RequestBody {
+
+	/**
+	 * @return the value of the Content-Type header
+	 */
+	String getContentType();
+
+	/**
+	 * @return the length of the body in bytes, or -1 if it is not known in
+	 *         advance, in which case the body is sent chunked
+	 * @throws IOException
+	 *             if the length could not be determined
+	 */
+	long getLength() throws IOException;
+
+	/**
+	 * @return true if the body can be written more than once, which is needed
+	 *         to send the request again when a reused socket turns out to be
+	 *         closed
+	 */
+	boolean isRepeatable();
+
+	/**
+	 * Writes the body.
+	 * 
+	 * @param out
+	 *            socket OutputStream
+	 * @param channel
+	 *            the channel of the socket, or null if the socket has no
+	 *            channel. Data written to out must be flushed before writing
+	 *            to the channel.
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	void writeTo(OutputStream out, WritableByteChannel channel)
+			throws IOException;
+}
@@ -0,0 +1,195 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes a {@link RequestBody} as ByteBuffers, the counterpart of
+ * {@link PublisherBody}. The body is written on a thread of a pool shared by
+ * all connections, into a stream that hands a buffer to the subscriber each
+ * time it fills up. The writer only produces buffers the subscriber asked for
+ * and waits for demand otherwise.
+ * 
+ * The writer stops as soon as the subscription is cancelled, or when the
+ * subscriber asks for nothing for longer than the timeout, so a request that
+ * ended early does not hold on to a thread. A failure of the body is passed on
+ * to the subscriber.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class RequestBodyPublisher implements Flow.Publisher<ByteBuffer> {
+	private final static int BUFFER_SIZE = 16384;
+
+	private static ExecutorService executor;
+
+	private final RequestBody body;
+	private final long timeoutNanos;
+
+	/**
+	 * @param body
+	 *            the body to publish
+	 * @param timeout
+	 *            the maximum time to wait for demand in milliseconds, or 0 to
+	 *            wait indefinitely
+	 */
+	RequestBodyPublisher(RequestBody body, int timeout) {
+		this.body = body;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		Writer writer = new Writer(subscriber);
+		subscriber.onSubscribe(writer);
+		getExecutor().execute(writer);
+	}
+
+	/**
+	 * @return the executor that writes request bodies, shared by all
+	 *         connections
+	 */
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "network-h2-body");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Writes the body for one subscriber.
+	 */
+	private class Writer extends OutputStream implements Flow.Subscription,
+			Runnable {
+		private final Flow.Subscriber<? super ByteBuffer> subscriber;
+		private final byte[] buffer;
+		private int count;
+
+		private long demand;
+		private boolean cancelled;
+
+		private Writer(Flow.Subscriber<? super ByteBuffer> subscriber) {
+			this.subscriber = subscriber;
+			this.buffer = new byte[BUFFER_SIZE];
+			this.count = 0;
+			this.demand = 0;
+			this.cancelled = false;
+		}
+
+		@Override
+		public void run() {
+			try {
+				body.writeTo(this, null);
+				flush();
+				subscriber.onComplete();
+			} catch (IOException | RuntimeException e) {
+				if (!isCancelled()) {
+					cancel();
+					subscriber.onError(e);
+				}
+			}
+		}
+
+		@Override
+		public synchronized void request(long n) {
+			if (n <= 0) {
+				cancelled = true;
+				notifyAll();
+				subscriber.onError(new IllegalArgumentException(
+						"Requested a non-positive number of buffers"));
+				return;
+			}
+			demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+
+		private synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				publish();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) {
+					publish();
+				}
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				publish();
+			}
+		}
+
+		/**
+		 * Hands the buffered bytes to the subscriber once it asks for them.
+		 */
+		private void publish() throws IOException {
+			synchronized (this) {
+				long deadline = System.nanoTime() + timeoutNanos;
+				while (demand == 0 && !cancelled) {
+					long remaining = deadline - System.nanoTime();
+					if (timeoutNanos > 0 && remaining <= 0) {
+						throw new SocketTimeoutException(
+								"Request body was not read in time");
+					}
+					try {
+						if (timeoutNanos > 0) {
+							TimeUnit.NANOSECONDS.timedWait(this, remaining);
+						} else {
+							wait();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException(
+								"Interrupted while writing the request body");
+					}
+				}
+				if (cancelled) {
+					throw new IOException("Request body cancelled");
+				}
+				demand--;
+			}
+			subscriber.onNext(ByteBuffer.wrap(Arrays.copyOf(buffer, count)));
+			count = 0;
+		}
+	}
+}
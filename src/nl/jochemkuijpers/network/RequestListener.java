@@ -0,0 +1,26 @@
+package nl.jochemkuijpers.network;
+
+/**
+ * Receives the timings of requests made by a connection. Register a listener
+ * with {@link Connection#addListener(RequestListener)}.
+ * 
+ * Listeners are called on the thread that completes the request, so they
+ * should return quickly and must be thread-safe if the connection is shared
+ * between threads. A listener should not throw exceptions.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ * @see LatencyListener
+ */
+public interface RequestListener {
+
+	/**
+	 * Called when a request has completed or failed. For a streaming
+	 * response, this happens when the response is closed.
+	 * 
+	 * @param metrics
+	 *            the timings of the request
+	 */
+	public void requestCompleted(RequestMetrics metrics);
+}
@@ -0,0 +1,151 @@
+package nl.jochemkuijpers.network;
+
+/**
+ * The timings of a single request, split into phases. Phases that did not
+ * happen, such as connecting when a pooled socket was reused, take 0
+ * nanoseconds.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class RequestMetrics {
+	private final String host;
+	private final String method;
+	private final String path;
+	private final int statusCode;
+	private final boolean reused;
+	private final long dnsNanos;
+	private final long connectNanos;
+	private final long tlsNanos;
+	private final long firstByteNanos;
+	private final long transferNanos;
+	private final long totalNanos;
+	private final long bytesSent;
+	private final long bytesReceived;
+	private final Throwable error;
+
+	RequestMetrics(String host, String method, String path, int statusCode,
+			boolean reused, long dnsNanos, long connectNanos, long tlsNanos,
+			long firstByteNanos, long transferNanos, long totalNanos,
+			long bytesSent, long bytesReceived, Throwable error) {
+		this.host = host;
+		this.method = method;
+		this.path = path;
+		this.statusCode = statusCode;
+		this.reused = reused;
+		this.dnsNanos = dnsNanos;
+		this.connectNanos = connectNanos;
+		this.tlsNanos = tlsNanos;
+		this.firstByteNanos = firstByteNanos;
+		this.transferNanos = transferNanos;
+		this.totalNanos = totalNanos;
+		this.bytesSent = bytesSent;
+		this.bytesReceived = bytesReceived;
+		this.error = error;
+	}
+
+	/**
+	 * @return the destination host
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return the request method
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the request path, without first slash
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the status code of the response, or -1 if no response was
+	 *         received
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return true if the request was sent on a pooled socket that served an
+	 *         earlier request
+	 */
+	public boolean isReused() {
+		return reused;
+	}
+
+	/**
+	 * @return the time spent looking up the addresses of the host
+	 */
+	public long getDnsNanos() {
+		return dnsNanos;
+	}
+
+	/**
+	 * @return the time spent connecting the socket
+	 */
+	public long getConnectNanos() {
+		return connectNanos;
+	}
+
+	/**
+	 * @return the time spent in the TLS handshake
+	 */
+	public long getTlsNanos() {
+		return tlsNanos;
+	}
+
+	/**
+	 * @return the time from starting to send the request until the status
+	 *         line of the response was received
+	 */
+	public long getFirstByteNanos() {
+		return firstByteNanos;
+	}
+
+	/**
+	 * @return the time from receiving the status line until the body was read
+	 *         or the response was closed
+	 */
+	public long getTransferNanos() {
+		return transferNanos;
+	}
+
+	/**
+	 * @return the total time of the request, including waiting for a pooled
+	 *         socket
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * @return the number of bytes of the request head and body
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return the number of bytes of the response head and body, as received
+	 *         from the socket
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return the error that failed the request, or null if it succeeded
+	 */
+	public Throwable getError() {
+		return error;
+	}
+}
@@ -0,0 +1,143 @@
+package nl.jochemkuijpers.network;
+
+/**
+ * Records the phases of a request while it is made, and reports them to the
+ * listeners of the connection when it completes. A timer is only created when
+ * the connection has listeners.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class RequestTimer {
+	private final RequestListener[] listeners;
+	private final String host;
+	private final String method;
+	private final String path;
+	private final long start;
+
+	private long dnsNanos;
+	private long connectNanos;
+	private long tlsNanos;
+	private long firstByteNanos;
+	private long requestStart;
+	private long responseStart;
+	private long bytesSent;
+	private long receivedStart;
+	private boolean reused;
+	private HttpInputStream in;
+	private boolean finished;
+
+	/**
+	 * Starts timing a request.
+	 * 
+	 * @param listeners
+	 *            the listeners to report to
+	 * @param host
+	 *            destination host
+	 * @param method
+	 *            request method
+	 * @param path
+	 *            request path
+	 */
+	RequestTimer(RequestListener[] listeners, String host, String method,
+			String path) {
+		this.listeners = listeners;
+		this.host = host;
+		this.method = method;
+		this.path = path;
+		this.start = System.nanoTime();
+	}
+
+	/**
+	 * @param nanos
+	 *            the time spent resolving the host
+	 */
+	void dns(long nanos) {
+		dnsNanos = nanos;
+	}
+
+	/**
+	 * @param nanos
+	 *            the time spent connecting
+	 */
+	void connect(long nanos) {
+		connectNanos = nanos;
+	}
+
+	/**
+	 * @param nanos
+	 *            the time spent in the TLS handshake
+	 */
+	void tls(long nanos) {
+		tlsNanos = nanos;
+	}
+
+	/**
+	 * Called before the request is written to a socket.
+	 * 
+	 * @param connection
+	 *            the socket the request is sent on
+	 */
+	void requestStarted(PooledSocket connection) {
+		reused = connection.isReused();
+		in = connection.getInputStream();
+		receivedStart = in.getBytesReceived();
+		requestStart = System.nanoTime();
+	}
+
+	/**
+	 * @param bytes
+	 *            the number of bytes of the request
+	 */
+	void requestSent(long bytes) {
+		bytesSent = bytes;
+	}
+
+	/**
+	 * Called when the status line of the response was received.
+	 */
+	void responseStarted() {
+		responseStart = System.nanoTime();
+		firstByteNanos = responseStart - requestStart;
+	}
+
+	/**
+	 * Reports a completed request.
+	 * 
+	 * @param statusCode
+	 *            the status code of the response
+	 */
+	void complete(int statusCode) {
+		report(statusCode, null);
+	}
+
+	/**
+	 * Reports a failed request.
+	 * 
+	 * @param error
+	 *            the error that failed the request
+	 */
+	void fail(Throwable error) {
+		report(-1, error);
+	}
+
+	private void report(int statusCode, Throwable error) {
+		if (finished) {
+			return;
+		}
+		finished = true;
+
+		long now = System.nanoTime();
+		long transferNanos = responseStart == 0 ? 0 : now - responseStart;
+		long bytesReceived = in == null ? 0 : in.getBytesReceived()
+				- receivedStart;
+		RequestMetrics metrics = new RequestMetrics(host, method, path,
+				statusCode, reused, dnsNanos, connectNanos, tlsNanos,
+				firstByteNanos, transferNanos, now - start, bytesSent,
+				bytesReceived, error);
+		for (RequestListener listener : listeners) {
+			listener.requestCompleted(metrics);
+		}
+	}
+}
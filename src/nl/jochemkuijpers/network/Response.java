@@ -0,0 +1,188 @@
+package nl.jochemkuijpers.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response that has been received completely. Responses are immutable and
+ * can be shared between threads. The body array is not copied and should not
+ * be modified.
+ * 
+ * A body larger than the spill threshold of the connection is kept in a
+ * temporary file instead of memory. Such a body is best read with
+ * {@link #getBodyStream()} or {@link #getBodyBuffer()}, and its file is
+ * deleted when the response is closed or garbage collected. Closing a response
+ * of which the body is held in memory has no effect.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class Response implements Closeable {
+	private final String status;
+	private final int statusCode;
+	private final String reason;
+	private final Headers fields;
+	private final Map<String, String> headers;
+	private final byte[] body;
+	private final SpillFile spilled;
+
+	/**
+	 * @param status
+	 *            the status line
+	 * @param headers
+	 *            the response headers
+	 * @param body
+	 *            the response body
+	 */
+	Response(String status, Headers headers, byte[] body) {
+		this(status, headers, body, null);
+	}
+
+	/**
+	 * @param status
+	 *            the status line
+	 * @param headers
+	 *            the response headers
+	 * @param body
+	 *            the temporary file that holds the response body
+	 */
+	Response(String status, Headers headers, SpillFile body) {
+		this(status, headers, null, body);
+	}
+
+	private Response(String status, Headers headers, byte[] body,
+			SpillFile spilled) {
+		this.status = status;
+		this.statusCode = NetworkUtils.parseStatusCode(status);
+		String[] parts = status.split(" ", 3);
+		this.reason = parts.length == 3 ? parts[2] : "";
+		this.fields = headers;
+		this.headers = Collections.unmodifiableMap(headers);
+		this.body = body;
+		this.spilled = spilled;
+	}
+
+	/**
+	 * @return The status line (e.g. HTTP/1.1 200 OK) of the response
+	 */
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the status code (e.g. 200) of the response, or -1 if the status
+	 *         line could not be parsed
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return the reason phrase (e.g. OK) of the response, or an empty string
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * @return the headers of the response, with lower case field names.
+	 *         Multiple values of a field are joined with ", ".
+	 */
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @param field
+	 *            the name of the field, in any case
+	 * @return all values of the field in the order they were received, which
+	 *         is useful for fields such as Set-Cookie
+	 */
+	public List<String> getHeaderValues(String field) {
+		return fields.getAll(field);
+	}
+
+	/**
+	 * @return the headers of the response
+	 */
+	Headers getFields() {
+		return fields;
+	}
+
+	/**
+	 * Returns the body as an array. A body that was spilled to a temporary
+	 * file is read into a new array on every call.
+	 * 
+	 * @return response body as a byte array, or empty byte array.
+	 * @throws UncheckedIOException
+	 *             if a spilled body could not be read
+	 * @throws IllegalStateException
+	 *             if a spilled body does not fit in an array
+	 */
+	public byte[] getBody() {
+		if (spilled != null) {
+			return spilled.toByteArray();
+		}
+		return body;
+	}
+
+	/**
+	 * @return the length of the response body in bytes
+	 */
+	public long getBodyLength() {
+		return spilled != null ? spilled.length() : body.length;
+	}
+
+	/**
+	 * @return true if the body was larger than the spill threshold and is held
+	 *         in a temporary file
+	 */
+	public boolean isSpilled() {
+		return spilled != null;
+	}
+
+	/**
+	 * @return a new InputStream over the response body, which reads a spilled
+	 *         body from its temporary file
+	 */
+	public InputStream getBodyStream() {
+		if (spilled != null) {
+			return spilled.newInputStream();
+		}
+		return new ByteArrayInputStream(body);
+	}
+
+	/**
+	 * @return a read-only buffer over the response body. A spilled body is
+	 *         mapped into memory, so it is paged in from its temporary file as
+	 *         it is read.
+	 * @throws IOException
+	 *             if a spilled body could not be mapped
+	 */
+	public ByteBuffer getBodyBuffer() throws IOException {
+		if (spilled != null) {
+			return spilled.map();
+		}
+		return ByteBuffer.wrap(body).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Deletes the temporary file of a spilled body. The body can no longer be
+	 * read afterwards, but buffers returned by {@link #getBodyBuffer()} remain
+	 * valid.
+	 */
+	@Override
+	public void close() {
+		if (spilled != null) {
+			spilled.release();
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package nl.jochemkuijpers.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a response from bytes as they arrive on a non-blocking channel. This
+ * is the incremental counterpart of reading a response through
+ * {@link HttpInputStream} and {@link BodyInputStream}.
+ * 
+ * The body is collected in memory that grows as it arrives, whatever length
+ * the server announces. Like a response read by a blocking request, a body
+ * larger than the spill threshold is moved to a temporary file, and a body
+ * larger than the maximum body size fails the response.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class ResponseDecoder {
+	private enum State {
+		HEAD, FIXED, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE
+	}
+
+	private final static int MAX_HEAD_LENGTH = 65536;
+	private final static int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private final String method;
+	private final int spillThreshold;
+	private final long maxBodySize;
+	private final ByteArrayOutputStream head;
+	private final StringBuilder line;
+
+	private State state;
+	private SpillBuffer body;
+	private long bodyLength;
+	private long remaining;
+	private int lineLength;
+
+	private String status;
+	private Headers headers;
+
+	/**
+	 * @param method
+	 *            the request method
+	 * @param spillThreshold
+	 *            the maximum number of bytes of a body kept in memory, or -1
+	 *            to always keep bodies in memory
+	 * @param maxBodySize
+	 *            the maximum body size in bytes, or -1 for no maximum
+	 */
+	ResponseDecoder(String method, int spillThreshold, long maxBodySize) {
+		this.method = method;
+		this.spillThreshold = spillThreshold;
+		this.maxBodySize = maxBodySize;
+		this.head = new ByteArrayOutputStream();
+		this.line = new StringBuilder();
+		this.state = State.HEAD;
+		this.lineLength = 0;
+	}
+
+	/**
+	 * Decodes the available bytes. Bytes following the end of the response are
+	 * ignored.
+	 * 
+	 * @param src
+	 *            the received bytes
+	 * @throws IOException
+	 *             if the response is malformed
+	 */
+	void feed(ByteBuffer src) throws IOException {
+		while (src.hasRemaining() && state != State.DONE) {
+			switch (state) {
+			case HEAD:
+				if (readBlock(src)) {
+					parseHead();
+				}
+				break;
+			case FIXED:
+				readData(src);
+				if (remaining == 0) {
+					state = State.DONE;
+				}
+				break;
+			case CHUNK_SIZE:
+				if (readLine(src)) {
+					remaining = parseChunkSize();
+					state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+				}
+				break;
+			case CHUNK_DATA:
+				readData(src);
+				if (remaining == 0) {
+					state = State.CHUNK_END;
+				}
+				break;
+			case CHUNK_END:
+				if (readLine(src)) {
+					if (line.length() != 0) {
+						throw new IOException("Missing CRLF after chunk data");
+					}
+					state = State.CHUNK_SIZE;
+				}
+				break;
+			case TRAILERS:
+				if (readBlock(src)) {
+					new HttpInputStream(new ByteArrayInputStream(
+							head.toByteArray())).readHeaders(headers);
+					state = State.DONE;
+				}
+				break;
+			case UNTIL_CLOSE:
+				readData(src);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Signals that the connection was closed.
+	 * 
+	 * @throws IOException
+	 *             if the response was not complete
+	 */
+	void endOfStream() throws IOException {
+		if (state == State.UNTIL_CLOSE) {
+			state = State.DONE;
+		} else if (state != State.DONE) {
+			throw new EOFException(
+					"Connection closed before the response was complete");
+		}
+	}
+
+	/**
+	 * @return true if the response has been decoded completely
+	 */
+	boolean isComplete() {
+		return state == State.DONE;
+	}
+
+	/**
+	 * Hands the decoded response over. Can be called once.
+	 * 
+	 * @return the decoded response
+	 */
+	Response getResponse() {
+		SpillBuffer content = body;
+		body = null;
+		if (content.isSpilled()) {
+			return new Response(status, headers, content.toFile());
+		}
+		return new Response(status, headers, content.toByteArray());
+	}
+
+	/**
+	 * Deletes the temporary file of a body that is abandoned, if it has one
+	 * and the response was not handed over.
+	 */
+	void discard() {
+		if (body != null) {
+			body.close();
+		}
+	}
+
+	/**
+	 * Accumulates the bytes of a header or trailer block in head.
+	 * 
+	 * @return true if the empty line ending the block was read
+	 */
+	private boolean readBlock(ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			byte b = src.get();
+			head.write(b);
+			if (head.size() > MAX_HEAD_LENGTH) {
+				throw new IOException("Response head exceeds "
+						+ MAX_HEAD_LENGTH + " bytes");
+			}
+
+			if (b == '\n') {
+				if (lineLength == 0) {
+					if (state == State.HEAD && head.size() <= 2) {
+						head.reset(); // empty line before the status line
+						continue;
+					}
+					return true;
+				}
+				lineLength = 0;
+			} else if (b != '\r') {
+				lineLength++;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Accumulates a line in line, excluding the line ending.
+	 * 
+	 * @return true if the line ending was read
+	 */
+	private boolean readLine(ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			byte b = src.get();
+			if (b == '\n') {
+				return true;
+			}
+			if (b != '\r') {
+				if (line.length() >= MAX_HEAD_LENGTH) {
+					throw new IOException("Line exceeds " + MAX_HEAD_LENGTH
+							+ " bytes");
+				}
+				line.append((char) (b & 0xff));
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Copies body bytes, at most remaining in the FIXED and CHUNK_DATA states.
+	 */
+	private void readData(ByteBuffer src) throws IOException {
+		int n = src.remaining();
+		if (state != State.UNTIL_CLOSE) {
+			n = (int) Math.min(n, remaining);
+			remaining -= n;
+		}
+		bodyLength += n;
+		checkBodySize(bodyLength);
+		if (spillThreshold < 0 && bodyLength > MAX_ARRAY_SIZE) {
+			throw new IOException("Response body does not fit in an array");
+		}
+		if (src.hasArray()) {
+			body.write(src.array(), src.arrayOffset() + src.position(), n);
+			src.position(src.position() + n);
+		} else {
+			byte[] copy = new byte[n];
+			src.get(copy);
+			body.write(copy, 0, n);
+		}
+	}
+
+	/**
+	 * Creates the buffer that collects the body.
+	 * 
+	 * @param length
+	 *            the length of the body, or -1 if it is not known
+	 */
+	private SpillBuffer createBody(long length) throws IOException {
+		checkBodySize(length);
+		int threshold = spillThreshold;
+		if (threshold < 0) {
+			if (length > MAX_ARRAY_SIZE) {
+				throw new IOException("Response body of " + length
+						+ " bytes does not fit in an array");
+			}
+			threshold = MAX_ARRAY_SIZE;
+		}
+		SpillBuffer buffer = new SpillBuffer(threshold);
+		if (length > threshold) {
+			buffer.spill();
+		}
+		return buffer;
+	}
+
+	/**
+	 * @throws BodyTooLargeException
+	 *             if the size exceeds the maximum body size
+	 */
+	private void checkBodySize(long size) throws BodyTooLargeException {
+		if (maxBodySize >= 0 && size > maxBodySize) {
+			throw new BodyTooLargeException("Response body exceeds "
+					+ maxBodySize + " bytes", maxBodySize);
+		}
+	}
+
+	/**
+	 * Parses the status line and header fields and determines how the body is
+	 * delimited, following the same rules as the blocking implementation.
+	 */
+	private void parseHead() throws IOException {
+		HttpInputStream in = new HttpInputStream(new ByteArrayInputStream(
+				head.toByteArray()));
+		head.reset();
+		lineLength = 0;
+
+		status = in.readStatusLine();
+		headers = new Headers();
+		in.readHeaders(headers);
+
+		int code = NetworkUtils.parseStatusCode(status);
+		if (code >= 100 && code < 200 && code != 101) {
+			return; // interim response, wait for the final one
+		}
+
+		if (method.equals("HEAD") || code == 101 || code == 204 || code == 304) {
+			body = createBody(0);
+			state = State.DONE;
+			return;
+		}
+
+		if (headers.containsKey("transfer-encoding")) {
+			body = createBody(-1);
+			if (headers.isChunked()) {
+				state = State.CHUNK_SIZE;
+			} else {
+				state = State.UNTIL_CLOSE;
+			}
+			return;
+		}
+
+		if (headers.containsKey("content-length")) {
+			remaining = headers.getContentLength();
+			if (remaining < 0) {
+				throw new IOException("Invalid Content-Length: "
+						+ headers.get("content-length"));
+			}
+			body = createBody(remaining);
+			state = remaining == 0 ? State.DONE : State.FIXED;
+			return;
+		}
+
+		body = createBody(-1);
+		state = State.UNTIL_CLOSE;
+	}
+
+	/**
+	 * @return the chunk size in line, ignoring any chunk extensions
+	 */
+	private long parseChunkSize() throws IOException {
+		int end = line.indexOf(";");
+		String size = (end >= 0 ? line.substring(0, end) : line.toString())
+				.trim();
+		line.setLength(0);
+		try {
+			long n = Long.parseLong(size, 16);
+			if (n < 0) {
+				throw new IOException("Invalid chunk size: " + size);
+			}
+			return n;
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid chunk size: " + size, e);
+		}
+	}
+}
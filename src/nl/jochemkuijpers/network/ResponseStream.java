@@ -0,0 +1,283 @@
+package nl.jochemkuijpers.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+
+/**
+ * A response of which the body is read from the socket as the caller consumes
+ * it, so bodies of any size can be processed in constant memory.
+ * 
+ * The response must be closed when it is no longer needed. If the body was
+ * read completely, the socket is returned to the connection for reuse,
+ * otherwise it is closed. Reading the body to its end closes the response
+ * automatically.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class ResponseStream implements Closeable {
+	private final ConnectionPool pool;
+	private final PooledSocket connection;
+	private final String status;
+	private final Headers headers;
+	private final BodyInputStream body;
+	private final InputStream content;
+	private final boolean keepAlive;
+	private final InputStream in;
+	private final RequestTimer timer;
+	private final ConcurrencyLimiter.Permit permit;
+	private final Cancellation cancellation;
+
+	private boolean ended;
+	private boolean closed;
+
+	/**
+	 * @param pool
+	 *            the pool to release the socket to
+	 * @param connection
+	 *            the leased socket
+	 * @param status
+	 *            the status line
+	 * @param headers
+	 *            the response headers with lower case field names
+	 * @param body
+	 *            the response body as sent by the server
+	 * @param content
+	 *            the decoded response body, or body itself if it is not
+	 *            encoded
+	 * @param keepAlive
+	 *            false if the server asked to close the connection
+	 * @param timer
+	 *            the timer to complete when the response is closed, or null
+	 * @param permit
+	 *            the concurrency limiter permit to release when the response
+	 *            is closed, or null
+	 * @param cancellation
+	 *            the cancellation to detach before the socket is released, or
+	 *            null
+	 */
+	ResponseStream(ConnectionPool pool, PooledSocket connection, String status,
+			Headers headers, BodyInputStream body,
+			InputStream content, boolean keepAlive, RequestTimer timer,
+			ConcurrencyLimiter.Permit permit, Cancellation cancellation) {
+		this.pool = pool;
+		this.connection = connection;
+		this.status = status;
+		this.headers = headers;
+		this.body = body;
+		this.content = content;
+		this.keepAlive = keepAlive;
+		this.in = new ResponseInputStream();
+		this.timer = timer;
+		this.permit = permit;
+		this.cancellation = cancellation;
+		this.ended = false;
+		this.closed = false;
+	}
+
+	/**
+	 * @return The status line (e.g. HTTP/1.1 200 OK) of the response
+	 */
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the headers of the response. Trailer fields of a chunked body
+	 *         are added once the body was read completely.
+	 */
+	public Headers getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @return the number of bytes left in the body, or -1 if it is not known in
+	 *         advance
+	 */
+	long getRemaining() {
+		return content == body ? body.getRemaining() : -1;
+	}
+
+	/**
+	 * @return an InputStream over the response body. Closing it closes the
+	 *         response.
+	 */
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	/**
+	 * @return a channel over the response body. Closing it closes the
+	 *         response.
+	 */
+	public ReadableByteChannel getChannel() {
+		return Channels.newChannel(in);
+	}
+
+	/**
+	 * Writes the rest of the body to a file and closes the response. A body of
+	 * known length that needs no decoding or checksum is transferred from the
+	 * socket channel to the file directly, if the socket has a channel. Other
+	 * bodies are copied through a pooled buffer.
+	 * 
+	 * @param file
+	 *            the file to write to, at its current position
+	 * @param digest
+	 *            the digest to update with the body, or null
+	 * @param timeout
+	 *            the maximum time to wait for data in milliseconds
+	 * @param bufferSize
+	 *            the size of the copy buffer
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	long transferTo(FileChannel file, MessageDigest digest, int timeout,
+			int bufferSize) throws IOException {
+		SocketChannel channel = connection.getSocket().getChannel();
+		if (digest == null && content == body && channel != null
+				&& body instanceof FixedLengthInputStream && !closed) {
+			long written;
+			try {
+				written = ((FixedLengthInputStream) body).transferTo(file,
+						file.position(), channel, timeout);
+				file.position(file.position() + written);
+				bodyComplete();
+			} catch (IOException e) {
+				close(e);
+				throw e;
+			}
+			return written;
+		}
+
+		byte[] buffer = BufferPool.get(bufferSize);
+		long written = 0;
+		int n;
+		while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+			if (digest != null) {
+				digest.update(buffer, 0, n);
+			}
+			ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+			while (chunk.hasRemaining()) {
+				file.write(chunk);
+			}
+			written += n;
+		}
+		return written;
+	}
+
+	/**
+	 * Closes the response. The socket is returned for reuse if the body was
+	 * read completely, or closed otherwise. Closing a response more than once
+	 * has no effect.
+	 */
+	@Override
+	public void close() {
+		close(null);
+	}
+
+	/**
+	 * Closes the response after reading the body failed, so the concurrency
+	 * limiter sees the failure instead of a completed request.
+	 * 
+	 * @param error
+	 *            the error that interrupted reading the body, or null
+	 */
+	private synchronized void close(IOException error) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (timer != null) {
+				timer.complete(NetworkUtils.parseStatusCode(status));
+			}
+		} finally {
+			// a throwing listener must not leak the socket or the permit
+			if (permit != null) {
+				permit.release(error);
+			}
+			if (cancellation != null) {
+				cancellation.detach();
+			}
+			pool.release(connection, keepAlive && body.isComplete());
+		}
+	}
+
+	/**
+	 * Called when the end of the body is reached. Bytes that follow the end of
+	 * a decoded body, such as the last chunk, are skipped so the socket can be
+	 * reused.
+	 * 
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	private void bodyComplete() throws IOException {
+		if (content != body) {
+			body.drain();
+		}
+		ended = true;
+		if (body instanceof ChunkedInputStream) {
+			headers.addAll(((ChunkedInputStream) body).getTrailers());
+		}
+		close();
+	}
+
+	/**
+	 * Reads the body and closes the response when the body ends.
+	 */
+	private class ResponseInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int len = read(b, 0, 1);
+			if (len <= 0) {
+				return -1;
+			}
+			return b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (ended) {
+				return -1;
+			}
+			if (closed) {
+				throw new IOException("Response closed");
+			}
+
+			try {
+				int n = content.read(b, off, len);
+				if (n < 0) {
+					bodyComplete();
+				}
+				return n;
+			} catch (IOException e) {
+				ResponseStream.this.close(e);
+				throw e;
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (closed) {
+				return 0;
+			}
+			return content.available();
+		}
+
+		@Override
+		public void close() {
+			ResponseStream.this.close();
+		}
+	}
+}
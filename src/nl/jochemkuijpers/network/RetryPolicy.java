@@ -0,0 +1,232 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Decides whether and when a failed request is sent again, and whether a slow
+ * GET request is hedged with a second one. Set a policy with
+ * {@link Connection#setRetryPolicy(RetryPolicy)}.
+ * 
+ * Only idempotent requests (GET, HEAD, PUT, DELETE, OPTIONS and TRACE) with a
+ * repeatable body are retried. Retries are delayed with exponential backoff
+ * and full jitter, so clients that failed at the same time do not retry at
+ * the same time.
+ * 
+ * Retries and hedged requests are limited by a budget. Every first attempt
+ * adds a fraction of a token to the budget, up to a maximum, and every retry
+ * or hedged request takes a whole token. When the budget is empty, failures
+ * are returned to the caller immediately, so retries cannot multiply the
+ * load on a server that is already failing. A policy can be shared by
+ * multiple connections to share its budget.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class RetryPolicy {
+	private final static int DEFAULT_MAX_RETRIES = 2;
+	private final static int DEFAULT_BASE_DELAY = 100;
+	private final static int DEFAULT_MAX_DELAY = 5000;
+	private final static double DEFAULT_BUDGET_RATIO = 0.1;
+	private final static int DEFAULT_BUDGET_MAX = 10;
+	private final static int MIN_HEDGE_SAMPLES = 20;
+
+	/** budget tokens are counted in thousandths */
+	private final static int TOKEN = 1000;
+
+	private final int maxRetries;
+	private final long baseDelayNanos;
+	private final long maxDelayNanos;
+	private final AtomicLong budget;
+
+	private volatile long budgetDeposit;
+	private volatile long budgetMax;
+	private volatile double hedgePercentile;
+
+	/**
+	 * Creates a policy that retries up to 2 times, with delays starting at 100
+	 * milliseconds and up to 5 seconds.
+	 */
+	public RetryPolicy() {
+		this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * Creates a policy with a budget that allows retries for 10% of the
+	 * requests, and up to 10 retries in a burst.
+	 * 
+	 * @param maxRetries
+	 *            the maximum number of times a request is retried
+	 * @param baseDelay
+	 *            the maximum delay in milliseconds before the first retry.
+	 *            The maximum delay doubles with every next retry.
+	 * @param maxDelay
+	 *            the maximum delay in milliseconds before any retry
+	 */
+	public RetryPolicy(int maxRetries, int baseDelay, int maxDelay) {
+		if (maxRetries < 0 || baseDelay < 0 || maxDelay < 0) {
+			throw new IllegalArgumentException(
+					"retries and delays cannot be negative");
+		}
+		this.maxRetries = maxRetries;
+		this.baseDelayNanos = TimeUnit.MILLISECONDS.toNanos(baseDelay);
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+		this.budgetDeposit = (long) (DEFAULT_BUDGET_RATIO * TOKEN);
+		this.budgetMax = (long) DEFAULT_BUDGET_MAX * TOKEN;
+		this.budget = new AtomicLong(budgetMax);
+		this.hedgePercentile = 0;
+	}
+
+	/**
+	 * Sets the retry budget. The budget is refilled completely.
+	 * 
+	 * @param ratio
+	 *            the number of retries allowed per request, e.g. 0.1 to allow
+	 *            retries for 10% of the requests
+	 * @param burst
+	 *            the maximum number of retries that can be made in a row
+	 */
+	public void setBudget(double ratio, int burst) {
+		if (ratio < 0 || burst < 0) {
+			throw new IllegalArgumentException("budget cannot be negative");
+		}
+		this.budgetDeposit = (long) (ratio * TOKEN);
+		this.budgetMax = (long) burst * TOKEN;
+		this.budget.set(budgetMax);
+	}
+
+	/**
+	 * Enables hedging of GET requests. When a GET request has not completed
+	 * after the given percentile of the latencies observed by the connection,
+	 * the same request is sent on a second socket. The first response is
+	 * returned and the other request is cancelled by closing its socket.
+	 * 
+	 * Hedging starts once the connection has observed 20 requests. Each
+	 * hedged request takes a token from the retry budget.
+	 * 
+	 * @param percentile
+	 *            the percentile of observed latencies after which a request is
+	 *            hedged, e.g. 95, or 0 to disable hedging
+	 */
+	public void setHedgePercentile(double percentile) {
+		if (percentile < 0 || percentile >= 100) {
+			throw new IllegalArgumentException(
+					"percentile must be between 0 and 100");
+		}
+		this.hedgePercentile = percentile;
+	}
+
+	/**
+	 * @return the percentile of observed latencies after which GET requests
+	 *         are hedged, or 0 if hedging is disabled
+	 */
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	/**
+	 * @return the maximum number of times a request is retried
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Decides whether an error may be solved by sending the request again.
+	 * Timeouts, refused connections and closed connections are retried.
+	 * Unknown hosts, TLS errors, interruptions, requests rejected by a
+	 * {@link ConcurrencyLimiter} and bodies over the maximum body size are not.
+	 * 
+	 * @param e
+	 *            the error of the failed attempt
+	 * @return true if the request may be retried
+	 */
+	public boolean isRetryable(IOException e) {
+		if (e instanceof UnknownHostException || e instanceof SSLException
+				|| e instanceof RejectedRequestException
+				|| e instanceof BodyTooLargeException) {
+			return false;
+		}
+		if (e instanceof InterruptedIOException) {
+			return e instanceof SocketTimeoutException;
+		}
+		return true;
+	}
+
+	/**
+	 * @param method
+	 *            request method
+	 * @return true if sending the request more than once has the same effect
+	 *         as sending it once
+	 */
+	static boolean isIdempotent(String method) {
+		return method.equals("GET") || method.equals("HEAD")
+				|| method.equals("PUT") || method.equals("DELETE")
+				|| method.equals("OPTIONS") || method.equals("TRACE");
+	}
+
+	/**
+	 * Adds the deposit of a first attempt to the budget.
+	 */
+	void requestStarted() {
+		long max = budgetMax;
+		long deposit = budgetDeposit;
+		long current = budget.get();
+		while (current < max
+				&& !budget.compareAndSet(current, Math.min(max, current
+						+ deposit))) {
+			current = budget.get();
+		}
+	}
+
+	/**
+	 * Takes a token from the budget for a retry or a hedged request.
+	 * 
+	 * @return true if a token was available
+	 */
+	boolean withdraw() {
+		long current = budget.get();
+		while (current >= TOKEN) {
+			if (budget.compareAndSet(current, current - TOKEN)) {
+				return true;
+			}
+			current = budget.get();
+		}
+		return false;
+	}
+
+	/**
+	 * @param retry
+	 *            the number of the retry, starting at 1
+	 * @return a random delay in nanoseconds before the retry
+	 */
+	long getDelayNanos(int retry) {
+		long max = baseDelayNanos << Math.min(retry - 1, 30);
+		if (max <= 0 || max > maxDelayNanos) {
+			max = maxDelayNanos;
+		}
+		return max == 0 ? 0 : ThreadLocalRandom.current().nextLong(max + 1);
+	}
+
+	/**
+	 * @param latencies
+	 *            the latencies observed by the connection
+	 * @return the delay in nanoseconds after which a GET request is hedged, or
+	 *         -1 if it should not be hedged
+	 */
+	long getHedgeDelayNanos(LatencyHistogram latencies) {
+		double percentile = hedgePercentile;
+		if (percentile == 0 || latencies.getCount() < MIN_HEDGE_SAMPLES) {
+			return -1;
+		}
+		return latencies.getPercentileNanos(percentile);
+	}
+}
@@ -0,0 +1,526 @@
+package nl.jochemkuijpers.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a large file over several sockets at once. The file is split into
+ * byte ranges that are requested concurrently and written into their place in
+ * a pre-allocated target file.
+ * 
+ * A segment that fails is retried from where it stopped. The progress of all
+ * segments is saved periodically in a file next to the target (the target
+ * name with ".progress" appended), so a download that is interrupted resumes
+ * where it stopped when it is run again, provided the file on the server has
+ * not changed. The progress file is removed when the download completes.
+ * 
+ * Servers that do not support ranges, or do not report the size of the file,
+ * are downloaded over a single socket.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+public class SegmentedDownload {
+	private final static int DEFAULT_SEGMENTS = 4;
+	private final static int DEFAULT_MAX_RETRIES = 3;
+	private final static long MIN_SEGMENT_SIZE = 1 << 20;
+	private final static int BUFFER_SIZE = 65536;
+	private final static int SAVE_INTERVAL = 1000;
+	private final static int RETRY_DELAY = 500;
+	private final static String PROGRESS_SUFFIX = ".progress";
+
+	private final Connection connection;
+	private final String path;
+	private final Path target;
+	private final Path progressFile;
+	private final Object progressLock;
+
+	private int segments;
+	private int maxRetries;
+
+	private volatile boolean failed;
+	private long length;
+	private String validator;
+	private List<Segment> parts;
+	private long lastSave;
+
+	/**
+	 * @param connection
+	 *            the connection to download with. Its maximum number of
+	 *            connections limits the number of concurrent segments.
+	 * @param path
+	 *            a valid path without first slash. Should be properly
+	 *            url-encoded.
+	 * @param target
+	 *            the file to write to
+	 */
+	public SegmentedDownload(Connection connection, String path, Path target) {
+		this.connection = connection;
+		this.path = path;
+		this.target = target;
+		this.progressFile = target.resolveSibling(target.getFileName()
+				+ PROGRESS_SUFFIX);
+		this.progressLock = new Object();
+		this.segments = DEFAULT_SEGMENTS;
+		this.maxRetries = DEFAULT_MAX_RETRIES;
+	}
+
+	/**
+	 * Sets the number of segments that are downloaded concurrently. Files
+	 * smaller than 1MB per segment are split into fewer segments.
+	 * 
+	 * @param segments
+	 *            the number of segments
+	 */
+	public void setSegments(int segments) {
+		if (segments <= 0) {
+			throw new IllegalArgumentException("segments must be positive");
+		}
+		this.segments = segments;
+	}
+
+	/**
+	 * Sets how often a failed segment is retried before the download fails.
+	 * 
+	 * @param retries
+	 *            the maximum number of retries per segment
+	 */
+	public void setMaxRetries(int retries) {
+		if (retries < 0) {
+			throw new IllegalArgumentException("retries cannot be negative");
+		}
+		this.maxRetries = retries;
+	}
+
+	/**
+	 * Downloads the file, resuming an earlier run if its progress was saved.
+	 * 
+	 * @return the length of the file
+	 * @throws IOException
+	 *             if a segment failed after all retries, or the file changed
+	 *             on the server during the download
+	 */
+	public synchronized long run() throws IOException {
+		failed = false;
+		if (!probe()) {
+			Response response = connection.download(path, target);
+			checkStatus(response.getStatus());
+			return Files.size(target);
+		}
+
+		boolean resume = loadProgress();
+		if (!resume) {
+			parts = split(length, (int) Math.max(1,
+					Math.min(segments, length / MIN_SEGMENT_SIZE)));
+		}
+
+		try (FileChannel file = FileChannel.open(target,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			if (!resume) {
+				file.truncate(0);
+			}
+			if (length > 0 && file.size() < length) {
+				// allocates the file with a single byte at its end
+				file.write(ByteBuffer.allocate(1), length - 1);
+			}
+			lastSave = System.nanoTime();
+			saveProgress(file, true);
+
+			fetchAll(file);
+		}
+		Files.deleteIfExists(progressFile);
+		return length;
+	}
+
+	/**
+	 * Requests the first byte of the file to find out whether the server
+	 * supports ranges, the length of the file and its validator.
+	 * 
+	 * @return true if the file can be downloaded in segments
+	 */
+	private boolean probe() throws IOException {
+		ResponseStream response = connection.openRange(path, 0, 0, null);
+		try {
+			if (NetworkUtils.parseStatusCode(response.getStatus()) != 206) {
+				return false;
+			}
+			InputStream in = response.getInputStream();
+			while (in.read() >= 0) {
+				// read the single byte so the socket can be reused
+			}
+		} finally {
+			response.close();
+		}
+
+		length = contentRangeLength(response.getHeaders().get("content-range"));
+
+		String etag = response.getHeaders().get("etag");
+		if (etag != null && !etag.startsWith("W/")) {
+			validator = etag;
+		} else {
+			validator = response.getHeaders().get("last-modified");
+		}
+		return length >= 0;
+	}
+
+	/**
+	 * Downloads all unfinished segments concurrently.
+	 */
+	private void fetchAll(final FileChannel file) throws IOException {
+		List<Segment> todo = new ArrayList<Segment>();
+		for (Segment part : parts) {
+			if (part.position <= part.end) {
+				todo.add(part);
+			}
+		}
+		if (todo.isEmpty()) {
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(todo.size(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "network-segment");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			CompletionService<Void> completion = new ExecutorCompletionService<Void>(
+					executor);
+			for (final Segment part : todo) {
+				completion.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						try {
+							fetch(part, file);
+						} catch (IOException | RuntimeException e) {
+							failed = true; // stops the other segments
+							throw e;
+						}
+						return null;
+					}
+				});
+			}
+
+			// segments are joined as they end, so the first failure is seen
+			// while the others are still running
+			IOException failure = null;
+			for (int i = 0; i < todo.size() && failure == null; i++) {
+				try {
+					completion.take().get();
+				} catch (ExecutionException e) {
+					failed = true;
+					failure = e.getCause() instanceof IOException ? (IOException) e
+							.getCause() : new IOException(e.getCause());
+				}
+			}
+
+			if (failure != null) {
+				if (failure instanceof ChangedException) {
+					Files.deleteIfExists(progressFile);
+				} else {
+					saveProgress(file, true);
+				}
+				throw failure;
+			}
+		} catch (InterruptedException e) {
+			failed = true;
+			saveProgress(file, true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Download interrupted");
+		} finally {
+			stop(executor);
+		}
+	}
+
+	/**
+	 * Stops the segments that are still running and waits for them to end,
+	 * so none of them writes to the file after it is closed. Segments are
+	 * interrupted to end blocking reads; an interrupted write closes the file
+	 * channel, which is why the progress is saved before.
+	 * 
+	 * @param executor
+	 *            the executor running the segments
+	 */
+	private static void stop(ExecutorService executor) {
+		executor.shutdownNow();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Downloads a segment, retrying from where it stopped if it fails.
+	 */
+	private void fetch(Segment part, FileChannel file) throws IOException {
+		int attempt = 0;
+		while (part.position <= part.end) {
+			if (failed) {
+				throw new InterruptedIOException("Download cancelled");
+			}
+			try {
+				transfer(part, file);
+			} catch (ChangedException e) {
+				throw e;
+			} catch (IOException e) {
+				if (++attempt > maxRetries || failed) {
+					throw e;
+				}
+				try {
+					Thread.sleep((long) RETRY_DELAY * attempt);
+				} catch (InterruptedException interrupted) {
+					throw new InterruptedIOException("Download cancelled");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Requests the rest of a segment and writes it into the file.
+	 */
+	private void transfer(Segment part, FileChannel file) throws IOException {
+		ResponseStream response = connection.openRange(path, part.position,
+				part.end, validator);
+		try {
+			int status = NetworkUtils.parseStatusCode(response.getStatus());
+			if (status == 200) {
+				throw new ChangedException();
+			}
+			if (status != 206) {
+				throw new IOException("Unexpected response to a range request: "
+						+ response.getStatus());
+			}
+			String range = response.getHeaders().get("content-range");
+			if (range == null
+					|| !range.trim().startsWith("bytes " + part.position + "-")) {
+				throw new IOException("Unexpected content range: " + range);
+			}
+
+			InputStream in = response.getInputStream();
+			byte[] buffer = BufferPool.get(BUFFER_SIZE);
+			while (part.position <= part.end && !failed) {
+				int n = in.read(buffer, 0,
+						(int) Math.min(buffer.length, part.end - part.position
+								+ 1));
+				if (n < 0) {
+					throw new EOFException("Segment ended at " + part.position
+							+ " instead of " + (part.end + 1));
+				}
+				ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+				long position = part.position;
+				while (chunk.hasRemaining()) {
+					position += file.write(chunk, position);
+				}
+				part.position = position;
+				saveProgress(file);
+			}
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Saves the progress if it was not saved during the last second.
+	 */
+	private void saveProgress(FileChannel file) throws IOException {
+		saveProgress(file, false);
+	}
+
+	/**
+	 * Saves the progress of all segments. The file is forced to disk first,
+	 * so the saved progress never covers data that was lost.
+	 * 
+	 * @param force
+	 *            true to save regardless of when the progress was last saved
+	 */
+	private void saveProgress(FileChannel file, boolean force)
+			throws IOException {
+		synchronized (progressLock) {
+			writeProgress(file, force);
+		}
+	}
+
+	private void writeProgress(FileChannel file, boolean force)
+			throws IOException {
+		long now = System.nanoTime();
+		if (!force && now - lastSave < SAVE_INTERVAL * 1000000L) {
+			return;
+		}
+		lastSave = now;
+		if (validator == null) {
+			return; // without a validator, the download cannot be resumed
+		}
+
+		// positions only advance after their data was written, so forcing
+		// after taking the snapshot covers all data the snapshot refers to
+		long[] positions = new long[parts.size()];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = parts.get(i).position;
+		}
+		file.force(false);
+
+		StringBuilder ranges = new StringBuilder();
+		for (int i = 0; i < positions.length; i++) {
+			Segment part = parts.get(i);
+			if (ranges.length() > 0) {
+				ranges.append(';');
+			}
+			ranges.append(part.start).append(',').append(part.end).append(',')
+					.append(positions[i]);
+		}
+
+		Properties progress = new Properties();
+		progress.setProperty("path", path);
+		progress.setProperty("length", Long.toString(length));
+		progress.setProperty("validator", validator);
+		progress.setProperty("segments", ranges.toString());
+
+		Path temp = progressFile.resolveSibling(progressFile.getFileName()
+				+ ".tmp");
+		try (OutputStream out = Files.newOutputStream(temp)) {
+			progress.store(out, null);
+		}
+		Files.move(temp, progressFile, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads the saved progress of an earlier run.
+	 * 
+	 * @return true if the progress belongs to the same version of the file
+	 */
+	private boolean loadProgress() throws IOException {
+		if (validator == null || !Files.isRegularFile(progressFile)
+				|| !Files.isRegularFile(target)) {
+			return false;
+		}
+
+		Properties progress = new Properties();
+		try (Reader in = Files.newBufferedReader(progressFile,
+				StandardCharsets.ISO_8859_1)) {
+			progress.load(in);
+		}
+		if (!path.equals(progress.getProperty("path"))
+				|| !Long.toString(length).equals(progress.getProperty("length"))
+				|| !validator.equals(progress.getProperty("validator"))) {
+			return false;
+		}
+
+		List<Segment> loaded = new ArrayList<Segment>();
+		try {
+			for (String range : progress.getProperty("segments", "").split(";")) {
+				String[] values = range.split(",");
+				Segment part = new Segment(Long.parseLong(values[0]),
+						Long.parseLong(values[1]));
+				part.position = Long.parseLong(values[2]);
+				if (part.position < part.start || part.position > part.end + 1) {
+					return false;
+				}
+				loaded.add(part);
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			return false;
+		}
+		parts = loaded;
+		return true;
+	}
+
+	/**
+	 * @return the file length of a Content-Range header (e.g. bytes 0-0/1234),
+	 *         or -1 if it is unknown
+	 */
+	private static long contentRangeLength(String range) {
+		if (range == null) {
+			return -1;
+		}
+		int slash = range.lastIndexOf('/');
+		try {
+			return Long.parseLong(range.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return count segments of about equal size covering the file
+	 */
+	private static List<Segment> split(long length, int count) {
+		List<Segment> parts = new ArrayList<Segment>();
+		long size = length / count;
+		for (int i = 0; i < count; i++) {
+			long start = i * size;
+			long end = i == count - 1 ? length - 1 : start + size - 1;
+			parts.add(new Segment(start, end));
+		}
+		return parts;
+	}
+
+	private static void checkStatus(String status) throws IOException {
+		int code = NetworkUtils.parseStatusCode(status);
+		if (code < 200 || code >= 300) {
+			throw new IOException("Download failed: " + status);
+		}
+	}
+
+	/**
+	 * A byte range of the file and the position up to which it was written.
+	 */
+	private static class Segment {
+		private final long start;
+		private final long end;
+		private volatile long position;
+
+		private Segment(long start, long end) {
+			this.start = start;
+			this.end = end;
+			this.position = start;
+		}
+	}
+
+	/**
+	 * Thrown when the server sends the complete file instead of a range,
+	 * because the file changed since the download started.
+	 */
+	private static class ChangedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private ChangedException() {
+			super("The file changed on the server during the download");
+		}
+	}
+}
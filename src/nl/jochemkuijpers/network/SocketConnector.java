@@ -0,0 +1,240 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects a socket to the first reachable address of a host, in the style of
+ * Happy Eyeballs (RFC 8305). Addresses are tried in order, alternating
+ * between IPv6 and IPv4. If an attempt has not succeeded after a short delay,
+ * the next address is tried in parallel, and an attempt that fails starts the
+ * next one immediately. The first socket to connect is used and all other
+ * attempts are closed.
+ * 
+ * An unreachable address therefore delays the connection by the attempt
+ * delay at most, instead of by the full connection timeout.
+ * 
+ * The blocking connect calls of the attempts run on a pool of daemon threads
+ * shared by all connections. Idle threads are reused, and a new thread is
+ * started whenever none is free, so an attempt never waits behind attempts
+ * that are stuck connecting to unreachable addresses.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+abstract class SocketConnector {
+	private final static int ATTEMPT_DELAY = 250;
+
+	private static ExecutorService executor;
+
+	/**
+	 * @return a new unconnected socket
+	 * @throws IOException
+	 *             if the socket could not be created
+	 */
+	abstract Socket createSocket() throws IOException;
+
+	/**
+	 * Connects to one of the addresses.
+	 * 
+	 * @param addresses
+	 *            the addresses of the host
+	 * @param port
+	 *            destination port
+	 * @param timeout
+	 *            the maximum time to connect in milliseconds
+	 * @return a connected socket
+	 * @throws IOException
+	 *             if no address could be connected to within the timeout
+	 */
+	Socket connect(InetAddress[] addresses, int port, int timeout)
+			throws IOException {
+		if (addresses.length == 1) {
+			Socket socket = createSocket();
+			try {
+				socket.connect(new InetSocketAddress(addresses[0], port),
+						timeout);
+				return socket;
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		InetAddress[] ordered = interleave(addresses);
+		BlockingQueue<Attempt> results = new LinkedBlockingQueue<Attempt>();
+		List<Socket> sockets = new ArrayList<Socket>();
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeout);
+		long nextStart = System.nanoTime();
+		int started = 0;
+		int finished = 0;
+		IOException failure = null;
+		Socket winner = null;
+
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				if (started < ordered.length && now - nextStart >= 0) {
+					Socket socket = createSocket();
+					sockets.add(socket);
+					start(socket, new InetSocketAddress(ordered[started], port),
+							deadline, results);
+					started++;
+					nextStart = now
+							+ TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY);
+				}
+
+				long wait = deadline - now;
+				if (started < ordered.length) {
+					wait = Math.min(wait, nextStart - now);
+				}
+				if (deadline - now <= 0) {
+					throw new SocketTimeoutException("Connect timed out");
+				}
+
+				Attempt attempt = results.poll(Math.max(wait, 0),
+						TimeUnit.NANOSECONDS);
+				if (attempt == null) {
+					continue;
+				}
+				finished++;
+
+				if (attempt.error == null) {
+					winner = attempt.socket;
+					return winner;
+				}
+				if (failure == null) {
+					failure = attempt.error;
+				} else {
+					failure.addSuppressed(attempt.error);
+				}
+				if (started < ordered.length) {
+					nextStart = System.nanoTime(); // start the next one now
+				} else if (finished == started) {
+					throw failure;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while connecting");
+		} finally {
+			for (Socket socket : sockets) {
+				if (socket != winner) {
+					close(socket);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts connecting a socket on the shared connect executor. An attempt
+	 * that starts after the connection was already made, and its socket
+	 * closed, is skipped.
+	 */
+	private static void start(final Socket socket,
+			final InetSocketAddress address, final long deadline,
+			final BlockingQueue<Attempt> results) {
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				if (socket.isClosed()) {
+					return;
+				}
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline
+						- System.nanoTime());
+				try {
+					if (remaining <= 0) {
+						throw new SocketTimeoutException("Connect timed out");
+					}
+					socket.connect(address, (int) remaining);
+					results.add(new Attempt(socket, null));
+				} catch (IOException e) {
+					results.add(new Attempt(socket, e));
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the executor that runs connection attempts, shared by all
+	 *         connections
+	 */
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "network-connect");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * @return the addresses, alternating between the address families and
+	 *         starting with the family of the first address
+	 */
+	static InetAddress[] interleave(InetAddress[] addresses) {
+		List<InetAddress> first = new ArrayList<InetAddress>();
+		List<InetAddress> second = new ArrayList<InetAddress>();
+		boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+		for (InetAddress address : addresses) {
+			if ((address instanceof Inet6Address) == firstIsV6) {
+				first.add(address);
+			} else {
+				second.add(address);
+			}
+		}
+
+		InetAddress[] ordered = new InetAddress[addresses.length];
+		int n = 0;
+		for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+			if (i < first.size()) {
+				ordered[n++] = first.get(i);
+			}
+			if (i < second.size()) {
+				ordered[n++] = second.get(i);
+			}
+		}
+		return ordered;
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to do, the attempt is abandoned
+		}
+	}
+
+	/**
+	 * The outcome of a connection attempt.
+	 */
+	private static class Attempt {
+		private final Socket socket;
+		private final IOException error;
+
+		private Attempt(Socket socket, IOException error) {
+			this.socket = socket;
+			this.error = error;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Collects a response body in memory up to a threshold, and moves it to a
+ * temporary file once it grows beyond the threshold. The memory used per body
+ * is therefore bounded by the threshold, whatever the size of the body.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class SpillBuffer extends OutputStream {
+	private final static int INITIAL_SIZE = 8192;
+
+	private final int threshold;
+
+	private byte[] heap;
+	private int count;
+	private FileChannel file;
+	private long length;
+
+	/**
+	 * @param threshold
+	 *            the maximum number of bytes kept in memory
+	 */
+	SpillBuffer(int threshold) {
+		this.threshold = threshold;
+		this.heap = new byte[Math.min(threshold, INITIAL_SIZE)];
+		this.count = 0;
+		this.file = null;
+		this.length = 0;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (file == null && len > threshold - count) {
+			spill();
+		}
+		if (file == null) {
+			if (count + len > heap.length) {
+				heap = Arrays.copyOf(heap, (int) Math.min(threshold,
+						Math.max(count + len, heap.length * 2L)));
+			}
+			System.arraycopy(b, off, heap, count, len);
+			count += len;
+		} else {
+			ByteBuffer src = ByteBuffer.wrap(b, off, len);
+			while (src.hasRemaining()) {
+				file.write(src);
+			}
+		}
+		length += len;
+	}
+
+	/**
+	 * Moves the body to a temporary file, if it was not moved yet. Called
+	 * before writing a body that is known to exceed the threshold, so it is
+	 * not collected in memory first.
+	 * 
+	 * @throws IOException
+	 *             if the file could not be created or written
+	 */
+	void spill() throws IOException {
+		if (file != null) {
+			return;
+		}
+		file = FileChannel.open(
+				Files.createTempFile("network-", ".body"),
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.DELETE_ON_CLOSE);
+		ByteBuffer src = ByteBuffer.wrap(heap, 0, count);
+		while (src.hasRemaining()) {
+			file.write(src);
+		}
+		heap = null;
+		count = 0;
+	}
+
+	/**
+	 * @return true if the body was moved to a temporary file
+	 */
+	boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * @return the body collected in memory
+	 */
+	byte[] toByteArray() {
+		return count == heap.length ? heap : Arrays.copyOf(heap, count);
+	}
+
+	/**
+	 * @return the temporary file the body was moved to
+	 */
+	SpillFile toFile() {
+		return new SpillFile(file, length);
+	}
+
+	/**
+	 * Deletes the temporary file of a body that is abandoned.
+	 */
+	@Override
+	public void close() {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// nothing to do, the file is discarded anyway
+			}
+		}
+	}
+}
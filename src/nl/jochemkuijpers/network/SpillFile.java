@@ -0,0 +1,163 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A response body that was written to a temporary file because it exceeded
+ * the in-memory threshold of its connection. The file is opened with
+ * DELETE_ON_CLOSE and is deleted when it is released, or when it is garbage
+ * collected along with the response that holds it.
+ * 
+ * The file is only read with positional reads and read-only mappings, so it
+ * can be read by several threads at once.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class SpillFile {
+	private final static Cleaner CLEANER = Cleaner.create();
+
+	private final FileChannel channel;
+	private final long length;
+	private final Cleaner.Cleanable cleanable;
+
+	/**
+	 * @param channel
+	 *            the channel of the temporary file, opened for reading
+	 * @param length
+	 *            the length of the body in bytes
+	 */
+	SpillFile(FileChannel channel, long length) {
+		this.channel = channel;
+		this.length = length;
+		this.cleanable = CLEANER.register(this, new Closer(channel));
+	}
+
+	/**
+	 * @return the length of the body in bytes
+	 */
+	long length() {
+		return length;
+	}
+
+	/**
+	 * @return a new InputStream that reads the body from the start
+	 */
+	InputStream newInputStream() {
+		return new InputStream() {
+			private long pos = 0;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int n = read(b, 0, 1);
+				return n <= 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				if (pos >= length) {
+					return -1;
+				}
+				ByteBuffer dst = ByteBuffer.wrap(b, off,
+						(int) Math.min(len, length - pos));
+				int n = channel.read(dst, pos);
+				if (n < 0) {
+					return -1;
+				}
+				pos += n;
+				return n;
+			}
+
+			@Override
+			public long skip(long n) {
+				long skipped = Math.max(0, Math.min(n, length - pos));
+				pos += skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() {
+				return (int) Math.min(Integer.MAX_VALUE, length - pos);
+			}
+		};
+	}
+
+	/**
+	 * @return a read-only buffer that maps the file into memory
+	 * @throws IOException
+	 *             if the file could not be mapped
+	 */
+	ByteBuffer map() throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Response body of " + length
+					+ " bytes is too large to map");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+	}
+
+	/**
+	 * Reads the complete body into a new array.
+	 * 
+	 * @return the body
+	 * @throws UncheckedIOException
+	 *             if the file could not be read
+	 * @throws IllegalStateException
+	 *             if the body does not fit in an array
+	 */
+	byte[] toByteArray() {
+		if (length > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("Response body of " + length
+					+ " bytes does not fit in an array");
+		}
+		byte[] content = new byte[(int) length];
+		ByteBuffer dst = ByteBuffer.wrap(content);
+		try {
+			while (dst.hasRemaining()) {
+				if (channel.read(dst, dst.position()) < 0) {
+					throw new IOException("Spilled response body truncated");
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return content;
+	}
+
+	/**
+	 * Closes and deletes the file. Releasing it more than once has no effect.
+	 */
+	void release() {
+		cleanable.clean();
+	}
+
+	/**
+	 * Closes the channel of a file that is no longer used. It must not refer
+	 * to the SpillFile, or the SpillFile would never be collected.
+	 */
+	private static class Closer implements Runnable {
+		private final FileChannel channel;
+
+		Closer(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void run() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing to do, the file is discarded anyway
+			}
+		}
+	}
+}
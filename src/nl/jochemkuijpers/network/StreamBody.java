@@ -0,0 +1,59 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A request body read from an InputStream of unknown length. The body is sent
+ * chunked as it is read, so it is never held in memory as a whole. The stream
+ * is read to its end but not closed, and the body can only be sent once.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class StreamBody implements RequestBody {
+	private final static int BUFFER_SIZE = 8192;
+
+	private final String contentType;
+	private final InputStream in;
+
+	/**
+	 * @param contentType
+	 *            content type of the body, or null
+	 * @param in
+	 *            the stream to read the body from
+	 */
+	StreamBody(String contentType, InputStream in) {
+		this.contentType = contentType;
+		this.in = in;
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public long getLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public void writeTo(OutputStream out, WritableByteChannel channel)
+			throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,92 @@
+package nl.jochemkuijpers.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.Supplier;
+
+/**
+ * A request body produced as a sequence of ByteBuffers by a supplier, which
+ * returns null after the last buffer. Each buffer is requested once the
+ * previous one was written, and the body is sent chunked. The body can only be
+ * sent once.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class SupplierBody implements RequestBody {
+	private final static int BUFFER_SIZE = 8192;
+
+	private final String contentType;
+	private final Supplier<ByteBuffer> supplier;
+
+	/**
+	 * @param contentType
+	 *            content type of the body, or null
+	 * @param supplier
+	 *            the supplier of the body, which returns null at the end
+	 */
+	SupplierBody(String contentType, Supplier<ByteBuffer> supplier) {
+		this.contentType = contentType;
+		this.supplier = supplier;
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public long getLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public void writeTo(OutputStream out, WritableByteChannel channel)
+			throws IOException {
+		byte[] buffer = null;
+		ByteBuffer src;
+		while ((src = supplier.get()) != null) {
+			if (buffer == null && !src.hasArray()) {
+				buffer = new byte[BUFFER_SIZE];
+			}
+			write(out, src, buffer);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer, directly from its backing array
+	 * if it has one, or copied through a heap buffer otherwise.
+	 * 
+	 * @param out
+	 *            the OutputStream to write to
+	 * @param src
+	 *            the buffer to write
+	 * @param buffer
+	 *            a heap buffer, needed if src has no accessible array
+	 * @throws IOException
+	 *             if an error occurred
+	 */
+	static void write(OutputStream out, ByteBuffer src, byte[] buffer)
+			throws IOException {
+		if (src.hasArray()) {
+			out.write(src.array(), src.arrayOffset() + src.position(),
+					src.remaining());
+			src.position(src.limit());
+			return;
+		}
+		while (src.hasRemaining()) {
+			int n = Math.min(src.remaining(), buffer.length);
+			src.get(buffer, 0, n);
+			out.write(buffer, 0, n);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package nl.jochemkuijpers.network;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Sends bodies through {@link ChunkedOutputStream} and reads them back with
+ * {@link ChunkedInputStream}, for body sizes around the chunk size and with
+ * writes and reads of random lengths.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class ChunkedStreamTest {
+	private final static byte[] NEXT = ascii("HTTP/1.1 200 OK\r\n");
+
+	@Test
+	void roundTripsBodiesAroundTheChunkSize() throws IOException {
+		Random random = new Random(1);
+		int[] chunkSizes = { 1, 7, 16, ChunkedOutputStream.DEFAULT_CHUNK_SIZE };
+		for (int chunkSize : chunkSizes) {
+			int[] lengths = { 0, 1, chunkSize - 1, chunkSize, chunkSize + 1,
+					3 * chunkSize, 3 * chunkSize + 5 };
+			for (int length : lengths) {
+				assertRoundTrip(random, randomBytes(random, length), chunkSize);
+			}
+		}
+	}
+
+	@Test
+	void roundTripsRandomBodies() throws IOException {
+		Random random = new Random(2);
+		for (int i = 0; i < 200; i++) {
+			assertRoundTrip(random, randomBytes(random, random.nextInt(100000)),
+					1 + random.nextInt(20000));
+		}
+	}
+
+	@Test
+	void writesNothingForAnEmptyFlush() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out, 16);
+		chunked.flush();
+		chunked.write(ascii("hello"));
+		chunked.flush();
+		chunked.flush();
+		chunked.close();
+		chunked.close();
+
+		assertEquals("5\r\nhello\r\n0\r\n\r\n", new String(out.toByteArray(),
+				StandardCharsets.US_ASCII));
+		assertEquals(out.size(), chunked.getBytesWritten());
+		assertThrows(IOException.class, () -> chunked.write(1));
+	}
+
+	@Test
+	void readsExtensionsAndTrailers() throws IOException {
+		byte[] encoded = ascii("4;name=value\r\nWiki\r\n"
+				+ "9 \r\npedia in \r\n" + "0\r\n" + "Expires: never\r\n"
+				+ "X-Checksum: abc\r\n\r\n");
+		HttpInputStream in = new HttpInputStream(new ByteArrayInputStream(
+				concat(encoded, NEXT)));
+		ChunkedInputStream chunked = new ChunkedInputStream(in);
+
+		assertArrayEquals(ascii("Wikipedia in "), readAll(chunked, 3));
+		assertTrue(chunked.isComplete());
+		assertEquals("never", chunked.getTrailers().get("expires"));
+		assertEquals("abc", chunked.getTrailers().get("x-checksum"));
+		assertEquals("HTTP/1.1 200 OK", in.readStatusLine());
+	}
+
+	@Test
+	void failsOnATruncatedBody() throws IOException {
+		byte[] encoded = ascii("a\r\n01234");
+		ChunkedInputStream chunked = new ChunkedInputStream(
+				new HttpInputStream(new ByteArrayInputStream(encoded)));
+		assertThrows(EOFException.class, () -> readAll(chunked, 100));
+	}
+
+	@Test
+	void failsOnAnInvalidChunkSize() throws IOException {
+		byte[] encoded = ascii("xyz\r\nabc\r\n0\r\n\r\n");
+		ChunkedInputStream chunked = new ChunkedInputStream(
+				new HttpInputStream(new ByteArrayInputStream(encoded)));
+		assertThrows(IOException.class, () -> readAll(chunked, 100));
+	}
+
+	/**
+	 * Encodes a body with writes of random lengths and occasional flushes,
+	 * then decodes it with reads of random lengths. The decoder must return
+	 * the body and stop exactly at the end of the encoded body.
+	 */
+	private static void assertRoundTrip(Random random, byte[] body,
+			int chunkSize) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out, chunkSize);
+		for (int pos = 0; pos < body.length;) {
+			if (random.nextInt(10) == 0) {
+				chunked.write(body[pos++]);
+			} else {
+				int len = Math.min(body.length - pos,
+						random.nextInt(2 * chunkSize + 1));
+				chunked.write(body, pos, len);
+				pos += len;
+			}
+			if (random.nextInt(20) == 0) {
+				chunked.flush();
+			}
+		}
+		chunked.finish();
+		assertEquals(out.size(), chunked.getBytesWritten());
+
+		HttpInputStream in = new HttpInputStream(new ByteArrayInputStream(
+				concat(out.toByteArray(), NEXT)), 64 + random.nextInt(8192));
+		ChunkedInputStream decoded = new ChunkedInputStream(in);
+		String message = body.length + " bytes in chunks of " + chunkSize;
+		assertArrayEquals(body, readAll(decoded, 1 + random.nextInt(
+				2 * chunkSize + 1)), message);
+		assertTrue(decoded.isComplete(), message);
+		assertEquals(-1, decoded.read(), message);
+		assertEquals("HTTP/1.1 200 OK", in.readStatusLine(), message);
+	}
+
+	private static byte[] readAll(ChunkedInputStream in, int maxRead)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[maxRead];
+		int len;
+		while ((len = in.read(buffer, 0, buffer.length)) >= 0) {
+			out.write(buffer, 0, len);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] randomBytes(Random random, int length) {
+		byte[] b = new byte[length];
+		random.nextBytes(b);
+		return b;
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] c = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
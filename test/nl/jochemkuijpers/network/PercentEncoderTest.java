@@ -0,0 +1,145 @@
+package nl.jochemkuijpers.network;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares {@link PercentEncoder} and {@link FormBody} with
+ * {@link URLEncoder}, on fixed strings and on random strings that mix ASCII,
+ * two and three byte characters, surrogate pairs and unpaired surrogates.
+ * 
+ * Please refer to the LICENSE file for the license corresponding to this code.
+ * 
+ * @author Jochem Kuijpers
+ */
+class PercentEncoderTest {
+	private final static int RANDOM_STRINGS = 10000;
+
+	@Test
+	void encodesLikeUrlEncoder() throws IOException {
+		String[] strings = { "", "abc", "a b+c", "k=v&x=y", "-_.*~!'()",
+				"%20", "\u00e9t\u00e9", "\u20ac 5", "\ud83d\ude00",
+				"\ud83d", "\ude00", "a\ude00\ud83d", "\ud83d\ud83d\ude00",
+				"\u0000\u007f\u0080\u07ff\u0800\uffff" };
+		for (String s : strings) {
+			assertEncodesLikeUrlEncoder(s);
+		}
+	}
+
+	@Test
+	void encodesRandomStringsLikeUrlEncoder() throws IOException {
+		Random random = new Random(42);
+		for (int i = 0; i < RANDOM_STRINGS; i++) {
+			assertEncodesLikeUrlEncoder(randomString(random));
+		}
+	}
+
+	@Test
+	void encodesFormBodyLikeUrlEncoder() throws IOException {
+		Random random = new Random(7);
+		for (int i = 0; i < 100; i++) {
+			Map<String, String> fields = new LinkedHashMap<String, String>();
+			int count = random.nextInt(20);
+			for (int j = 0; j < count; j++) {
+				fields.put(randomString(random), randomString(random));
+			}
+
+			StringBuilder expected = new StringBuilder();
+			for (Map.Entry<String, String> field : fields.entrySet()) {
+				if (expected.length() > 0) {
+					expected.append('&');
+				}
+				expected.append(urlEncode(field.getKey())).append('=')
+						.append(urlEncode(field.getValue()));
+			}
+
+			FormBody body = new FormBody(fields);
+			ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+			body.writeTo(streamed, null);
+			byte[] inline = new byte[(int) body.getLength()];
+			int end = body.writeTo(inline, 0);
+
+			assertEquals(expected.length(), body.getLength());
+			assertEquals(expected.toString(), ascii(streamed.toByteArray(),
+					streamed.size()));
+			assertEquals(inline.length, end);
+			assertEquals(expected.toString(), ascii(inline, end));
+		}
+	}
+
+	/**
+	 * Encodes a string into an array, and into a small buffer that is flushed
+	 * to a stream, and checks both against URLEncoder and the computed length.
+	 */
+	private static void assertEncodesLikeUrlEncoder(String s)
+			throws IOException {
+		String expected = urlEncode(s);
+
+		byte[] dest = new byte[s.length() * PercentEncoder.MAX_BYTES_PER_CHAR];
+		int end = PercentEncoder.encode(s, dest, 0);
+		assertEquals(expected, ascii(dest, end), "array for " + escape(s));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[PercentEncoder.MAX_BYTES_PER_CHAR + 5];
+		int pos = PercentEncoder.encode(s, buffer, 0, out);
+		out.write(buffer, 0, pos);
+		assertEquals(expected, ascii(out.toByteArray(), out.size()),
+				"stream for " + escape(s));
+
+		assertEquals(expected.length(), PercentEncoder.encodedLength(s),
+				"length of " + escape(s));
+	}
+
+	private static String randomString(Random random) {
+		int length = random.nextInt(40);
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			switch (random.nextInt(6)) {
+			case 0:
+			case 1:
+				sb.append((char) random.nextInt(0x80));
+				break;
+			case 2:
+				sb.append((char) (0x80 + random.nextInt(0x800 - 0x80)));
+				break;
+			case 3:
+				char c = (char) (0x800 + random.nextInt(0x10000 - 0x800));
+				sb.append(Character.isSurrogate(c) ? '\u4e2d' : c);
+				break;
+			case 4:
+				sb.appendCodePoint(0x10000 + random.nextInt(0x100000));
+				break;
+			default:
+				// a high or low surrogate, most often unpaired
+				sb.append((char) (0xd800 + random.nextInt(0x800)));
+				break;
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String urlEncode(String s) {
+		return URLEncoder.encode(s, StandardCharsets.UTF_8);
+	}
+
+	private static String ascii(byte[] b, int length) {
+		return new String(b, 0, length, StandardCharsets.US_ASCII);
+	}
+
+	private static String escape(String s) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			sb.append(String.format("\\u%04x", (int) s.charAt(i)));
+		}
+		return sb.toString();
+	}
+}